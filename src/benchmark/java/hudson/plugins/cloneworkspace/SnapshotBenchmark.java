@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.DirScanner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes and restores snapshots of generated workspaces with each archive method, the way
+ * {@link CloneWorkspacePublisher} and {@link CloneWorkspaceSCM} do, minus the remoting.
+ *
+ * <p>
+ * The {@code bytes} counter is the size of the files archived or restored per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+
+    @Param({"TINY_FILES", "HUGE_BINARIES", "DEEP_TREE", "COMPRESSED"})
+    public WorkspaceShape shape;
+
+    @Param({"TAR", "TARZSTD", "TARLZ4", "ZIP", "DEDUP", "UNPACKED"})
+    public String method;
+
+    /**
+     * Compression threads for "TAR", restore threads for the archive methods.
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    private File root;
+    private FilePath workspace;
+
+    /**
+     * Snapshot taken once, for the restores.
+     */
+    private File archive;
+    private SnapshotStore store;
+    private String manifestId;
+    private SnapshotManifest manifest;
+
+    /**
+     * Where each invocation writes.
+     */
+    private File output;
+    private FilePath restored;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        root = Files.createTempDirectory("clone-workspace-benchmark").toFile();
+        File ws = new File(root, "workspace");
+        shape.generate(ws, new Random(42));
+        workspace = new FilePath(ws);
+
+        archive = new File(root, "snapshot");
+        if (method.equals("DEDUP")) {
+            store = new SnapshotStore(new File(root, "store"));
+            manifestId = store.publish(workspace, new DirScanner.Full(), null, TaskListener.NULL);
+            manifest = store.getManifest(manifestId);
+        } else {
+            manifest = snapshot(archive);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() throws IOException, InterruptedException {
+        output = new File(root, "output");
+        Util.deleteRecursive(output);
+        restored = new FilePath(new File(root, "restored"));
+        restored.deleteRecursive();
+        restored.mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Util.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public void archive(Counters counters) throws Exception {
+        snapshot(output);
+        counters.bytes += manifest.getTotalSize();
+    }
+
+    @Benchmark
+    public void restore(Counters counters) throws Exception {
+        switch (method) {
+        case "DEDUP":
+            store.restore(manifestId, restored, null);
+            break;
+        case "UNPACKED":
+            UnpackedTree.restore(archive, manifest, restored, null, TaskListener.NULL);
+            break;
+        default:
+            WorkspaceArchiver.extract(new FilePath(archive), method, restored, null, manifest, threads);
+            break;
+        }
+        counters.bytes += manifest.getTotalSize();
+    }
+
+    /**
+     * @return the manifest of the snapshot, or null for "DEDUP", which records it in the store.
+     */
+    private SnapshotManifest snapshot(File dst) throws IOException, InterruptedException {
+        DirScanner scanner = new DirScanner.Full();
+        switch (method) {
+        case "DEDUP":
+            // an empty store each time, so that everything gets stored rather than deduplicated against the last invocation
+            new SnapshotStore(dst).publish(workspace, scanner, null, TaskListener.NULL);
+            return null;
+        case "UNPACKED":
+            return UnpackedTree.publish(workspace, scanner, dst);
+        case "TAR":
+            try (OutputStream f = new FileOutputStream(dst);
+                 ParallelGZIPOutputStream gz = new ParallelGZIPOutputStream(f, threads);
+                 OutputStream os = new BufferedOutputStream(gz)) {
+                return WorkspaceArchiver.archive(workspace, scanner, "TAR", 0, os).manifest;
+            }
+        default:
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dst))) {
+                return WorkspaceArchiver.archive(workspace, scanner, method, 0, os).manifest;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generated workspaces stressing different parts of the snapshot and restore code paths.
+ * The same seed always generates the same workspace.
+ */
+enum WorkspaceShape {
+    /**
+     * Lots of small source-like files, where the per-entry overhead dominates.
+     */
+    TINY_FILES {
+        void generate(File dir, Random random) throws IOException {
+            for (int i = 0; i < 20000; i++) {
+                write(new File(dir, "module" + i / 500 + "/src/File" + i + ".java"), text(random, 64 + random.nextInt(1024)));
+            }
+        }
+    },
+    /**
+     * A few big binaries, half random and half zeros, where raw throughput dominates.
+     */
+    HUGE_BINARIES {
+        void generate(File dir, Random random) throws IOException {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < 4; i++) {
+                File f = new File(dir, "dist/artifact" + i + ".bin");
+                Files.createDirectories(f.getParentFile().toPath());
+                try (OutputStream out = new FileOutputStream(f)) {
+                    for (int j = 0; j < 64; j++) {
+                        random.nextBytes(block);
+                        Arrays.fill(block, block.length / 2, block.length, (byte) 0);
+                        out.write(block);
+                    }
+                }
+            }
+        }
+    },
+    /**
+     * Deeply nested directories with a file at each level, where walking the tree dominates.
+     */
+    DEEP_TREE {
+        void generate(File dir, Random random) throws IOException {
+            for (int i = 0; i < 100; i++) {
+                StringBuilder path = new StringBuilder("tree" + i);
+                for (int depth = 0; depth < 50; depth++) {
+                    path.append("/level").append(depth);
+                    write(new File(dir, path + "/file.txt"), text(random, 2048));
+                }
+            }
+        }
+    },
+    /**
+     * Files that are already compressed, which compressing again only slows down.
+     */
+    COMPRESSED {
+        void generate(File dir, Random random) throws IOException {
+            for (int i = 0; i < 200; i++) {
+                File f = new File(dir, "lib/dependency" + i + ".jar");
+                Files.createDirectories(f.getParentFile().toPath());
+                try (OutputStream out = new GZIPOutputStream(new FileOutputStream(f))) {
+                    while (f.length() < 512 * 1024) {
+                        out.write(text(random, 64 * 1024));
+                        out.flush();
+                    }
+                }
+            }
+        }
+    };
+
+    private static final String[] WORDS = {
+        "public", "static", "final", "class", "return", "if", "else", "for", "new", "String", "int", "long", "void",
+        "throws", "IOException", "null", "this", "build", "workspace", "snapshot", "archive", "restore", "file", "{", "}", ";"
+    };
+
+    abstract void generate(File dir, Random random) throws IOException;
+
+    private static byte[] text(Random random, int length) {
+        StringBuilder b = new StringBuilder(length + 16);
+        while (b.length() < length) {
+            b.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        return b.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void write(File f, byte[] contents) throws IOException {
+        Files.createDirectories(f.getParentFile().toPath());
+        Files.write(f.toPath(), contents);
+    }
+}
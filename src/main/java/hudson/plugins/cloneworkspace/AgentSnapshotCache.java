@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps copies of snapshot archives on the agents that restored them, so that other restores of the same snapshot
+ * on the same agent don't transfer it from the controller again.
+ *
+ * <p>
+ * Archives are kept in {@code clone-workspace-cache} under the root directory of the agent, as
+ * {@code <digest of the parent job name>/<build number>-<archive size>[-<snapshot name>]/<archive name>}. The size is part of the key so that
+ * the archive of a recreated job reusing the same build numbers is never mistaken for an older one. Each hit refreshes
+ * the timestamp of the cached archive, and whenever the cache grows beyond {@link CloneWorkspaceSCM.DescriptorImpl#getAgentCacheSize()},
+ * the least recently used archives are deleted.
+ */
+final class AgentSnapshotCache {
+
+    private static final String CACHE_DIR = "clone-workspace-cache";
+
+    private AgentSnapshotCache() {
+    }
+
+    /**
+     * Makes sure the archive of the given build is cached on the node {@code dst} lives on.
+     *
+     * @return the cached archive, on the same channel as {@code dst}, or null if it shouldn't or couldn't be cached,
+     *      in which case the archive should be read from the controller as usual.
+     */
+    static FilePath fetch(AbstractBuild<?,?> owner, File archive, FilePath dst, TaskListener listener) throws InterruptedException {
+        long limit = CloneWorkspaceSCM.DescriptorImpl.get().getAgentCacheSize() * 1024 * 1024;
+        if (limit <= 0 || !dst.isRemote() || !archive.isFile() || archive.length() > limit) {
+            return null;
+        }
+        FilePath root = getCacheDir(dst);
+        if (root == null) {
+            return null;
+        }
+        String key = Util.getDigestOf(owner.getParent().getFullName()) + '/' + owner.getNumber() + '-' + archive.length();
+        if (!archive.getParentFile().equals(owner.getRootDir())) {
+            key += '-' + archive.getParentFile().getName(); // a named snapshot
+        }
+        FilePath cached = root.child(key).child(archive.getName());
+        try {
+            if (cached.act(new Touch())) {
+                listener.getLogger().println(Messages.AgentSnapshotCache_Hit(owner.getFullDisplayName()));
+                return cached;
+            }
+            FilePath tmp = cached.getParent().child(archive.getName() + '.' + UUID.randomUUID() + ".tmp");
+            try {
+                tmp.copyFrom(new FilePath(archive));
+                try {
+                    tmp.renameTo(cached);
+                } catch (IOException e) {
+                    if (!cached.exists()) {
+                        throw e;
+                    } // else another restore cached it meanwhile
+                }
+            } finally {
+                tmp.delete();
+            }
+            root.act(new Evict(limit, cached.getRemote()));
+            return cached;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to cache " + archive + " in " + root, e);
+            return null;
+        }
+    }
+
+    private static FilePath getCacheDir(FilePath dst) {
+        Computer c = dst.toComputer();
+        Node n = c != null ? c.getNode() : null;
+        FilePath root = n != null ? n.getRootPath() : null;
+        return root != null ? root.child(CACHE_DIR) : null;
+    }
+
+    /**
+     * Marks a cached archive as just used, telling whether it's there at all.
+     */
+    private static final class Touch extends MasterToSlaveFileCallable<Boolean> {
+        public Boolean invoke(File f, VirtualChannel channel) throws IOException {
+            return f.isFile() && f.setLastModified(System.currentTimeMillis());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Deletes the least recently used archives until the cache fits in its limit.
+     */
+    private static final class Evict extends MasterToSlaveFileCallable<Void> {
+        private final long limit;
+        private final String keep;
+
+        Evict(long limit, String keep) {
+            this.limit = limit;
+            this.keep = keep;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            List<File> archives = new ArrayList<File>();
+            long total = 0;
+            for (File job : listFiles(root)) {
+                for (File build : listFiles(job)) {
+                    List<File> files = listFiles(build);
+                    if (files.isEmpty()) {
+                        Files.deleteIfExists(build.toPath());
+                    }
+                    for (File f : files) {
+                        if (f.getName().endsWith(".tmp")) {
+                            continue; // another restore filling the cache
+                        }
+                        archives.add(f);
+                        total += f.length();
+                    }
+                }
+            }
+            archives.sort(Comparator.comparingLong(File::lastModified));
+            for (File f : archives) {
+                if (total <= limit) {
+                    break;
+                }
+                if (f.getPath().equals(keep)) {
+                    continue;
+                }
+                long length = f.length();
+                try {
+                    Files.deleteIfExists(f.toPath());
+                    total -= length;
+                } catch (IOException e) {
+                    // most likely being read on Windows, it'll go next time
+                    LOGGER.log(Level.FINE, "Failed to evict " + f, e);
+                }
+            }
+            return null;
+        }
+
+        private static List<File> listFiles(File dir) {
+            File[] files = dir.listFiles();
+            return files != null ? Arrays.asList(files) : List.of();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AgentSnapshotCache.class.getName());
+}
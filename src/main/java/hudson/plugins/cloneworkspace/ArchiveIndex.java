@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of a "TAR" snapshot archive, written next to it, telling where each entry starts in the tar stream and where
+ * each of the independently compressed gzip members of the archive starts. With it, a restore that only wants some
+ * of the entries can read just the members holding them, instead of decompressing the whole archive.
+ *
+ * <p>
+ * Entries are in the same order as in the {@link SnapshotManifest} of the archive, which holds their paths.
+ */
+final class ArchiveIndex {
+
+    private static final int MAGIC = 0x43574958; // "CWIX"
+    private static final int VERSION = 1;
+
+    /**
+     * Offset of each entry (its headers included) in the uncompressed tar stream, followed by the end of the last entry.
+     */
+    private final long[] entryOffsets;
+    /**
+     * Offset of each gzip member in the archive.
+     */
+    private final long[] blockOffsets;
+    /**
+     * Offset in the uncompressed tar stream of the data in each gzip member.
+     */
+    private final long[] blockStarts;
+    private final long compressedSize;
+    private final long uncompressedSize;
+
+    ArchiveIndex(long[] entryOffsets, long[] blockOffsets, long[] blockStarts, long compressedSize, long uncompressedSize) {
+        if (blockOffsets.length != blockStarts.length) {
+            throw new IllegalArgumentException("Mismatched block table");
+        }
+        this.entryOffsets = entryOffsets;
+        this.blockOffsets = blockOffsets;
+        this.blockStarts = blockStarts;
+        this.compressedSize = compressedSize;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(compressedSize);
+            out.writeLong(uncompressedSize);
+            writeLongs(out, entryOffsets);
+            writeLongs(out, blockOffsets);
+            writeLongs(out, blockStarts);
+        }
+    }
+
+    static ArchiveIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a workspace archive index");
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException(file + " was written by a newer version of this plugin (format " + version + ")");
+            }
+            long compressedSize = in.readLong();
+            long uncompressedSize = in.readLong();
+            return new ArchiveIndex(readLongs(in), readLongs(in), readLongs(in), compressedSize, uncompressedSize);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long v : values) {
+            out.writeLong(v);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        long[] values = new long[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    /**
+     * Works out which parts of the archive hold the entries accepted by the filter.
+     *
+     * @return null if this index doesn't match the manifest, or the archive it was written for.
+     */
+    Selection select(SnapshotManifest manifest, CloneWorkspaceSnapshot.Filter filter, long archiveSize) {
+        if (entryOffsets.length != manifest.size() + 1 || archiveSize != compressedSize || blockOffsets.length == 0) {
+            return null;
+        }
+
+        // uncompressed ranges to read, merging adjacent entries
+        List<long[]> wanted = new ArrayList<long[]>();
+        for (int i = 0; i < manifest.size(); i++) {
+            if (!filter.accept(manifest.getEntries().get(i).getPath())) {
+                continue;
+            }
+            long start = entryOffsets[i], end = entryOffsets[i + 1];
+            long[] last = wanted.isEmpty() ? null : wanted.get(wanted.size() - 1);
+            if (last != null && last[1] == start) {
+                last[1] = end;
+            } else {
+                wanted.add(new long[] {start, end});
+            }
+        }
+
+        // runs of consecutive gzip members covering them, and where the ranges end up once these runs are decompressed
+        Selection selection = new Selection();
+        int runStart = -1, runEnd = -1;
+        long virtualStart = 0; // where the current run starts in the decompressed selection
+        for (long[] range : wanted) {
+            int first = blockOf(range[0]);
+            int last = blockOf(range[1] - 1);
+            if (runStart >= 0 && first > runEnd + 1) {
+                virtualStart += blockEnd(runEnd) - blockStarts[runStart];
+                selection.addRange(blockOffsets[runStart], compressedEnd(runEnd));
+                runStart = -1;
+            }
+            if (runStart < 0) {
+                runStart = first;
+            }
+            runEnd = Math.max(runEnd, last);
+            selection.addSegment(virtualStart + range[0] - blockStarts[runStart], virtualStart + range[1] - blockStarts[runStart]);
+        }
+        if (runStart >= 0) {
+            selection.addRange(blockOffsets[runStart], compressedEnd(runEnd));
+        }
+        return selection;
+    }
+
+    /**
+     * Index of the gzip member holding the given offset of the uncompressed stream.
+     */
+    private int blockOf(long offset) {
+        int i = Arrays.binarySearch(blockStarts, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private long blockEnd(int block) {
+        return block + 1 < blockStarts.length ? blockStarts[block + 1] : uncompressedSize;
+    }
+
+    private long compressedEnd(int block) {
+        return block + 1 < blockOffsets.length ? blockOffsets[block + 1] : compressedSize;
+    }
+
+    /**
+     * Parts of an archive to read for a partial restore.
+     */
+    static final class Selection {
+        private final List<Long> ranges = new ArrayList<Long>();
+        private final List<Long> segments = new ArrayList<Long>();
+        private long compressedLength;
+
+        private void addRange(long start, long end) {
+            ranges.add(start);
+            ranges.add(end);
+            compressedLength += end - start;
+        }
+
+        private void addSegment(long start, long end) {
+            segments.add(start);
+            segments.add(end);
+        }
+
+        /**
+         * Start and end offsets, in the archive, of the runs of gzip members to read, in order.
+         */
+        long[] getRanges() {
+            return toArray(ranges);
+        }
+
+        /**
+         * Start and end offsets of the wanted entries in the tar stream obtained by decompressing these runs one after the other.
+         */
+        long[] getSegments() {
+            return toArray(segments);
+        }
+
+        /**
+         * How much of the archive needs to be read.
+         */
+        long getCompressedLength() {
+            return compressedLength;
+        }
+
+        private static long[] toArray(List<Long> list) {
+            long[] a = new long[list.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = list.get(i);
+            }
+            return a;
+        }
+    }
+}
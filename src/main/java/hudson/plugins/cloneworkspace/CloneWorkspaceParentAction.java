@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Remembers which build of the parent project a build's workspace was cloned from.
+ *
+ * <p>
+ * Saved with the build, so working out the polling baseline doesn't need to read anything from disk.
+ * Builds made by older versions recorded this in {@code cloneWorkspaceParent.txt} instead,
+ * which gets turned into this action the first time it's needed.
+ */
+public class CloneWorkspaceParentAction extends InvisibleAction {
+    private final String parentJobName;
+    private final int parentBuildNumber;
+
+    public CloneWorkspaceParentAction(String parentJobName, int parentBuildNumber) {
+        this.parentJobName = parentJobName;
+        this.parentBuildNumber = parentBuildNumber;
+    }
+
+    /**
+     * Full name of the parent project, or null for builds migrated from {@code cloneWorkspaceParent.txt}, which didn't record it.
+     */
+    public String getParentJobName() {
+        return parentJobName;
+    }
+
+    public int getParentBuildNumber() {
+        return parentBuildNumber;
+    }
+}
@@ -27,21 +27,33 @@ import hudson.WorkspaceSnapshot;
 import hudson.FileSystemProvisioner;
 import hudson.Util;
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Failure;
 import hudson.model.Result;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.Recorder;
 import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
 import hudson.util.FormValidation;
+import hudson.util.IOUtils;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
@@ -50,10 +62,21 @@ import net.sf.json.JSONObject;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,7 +107,8 @@ public class CloneWorkspacePublisher extends Recorder {
 
     /**
      * The method by which the SCM will be archived.
-     * Can by "TAR" or "ZIP".
+     * Can by "TAR", "TARZSTD" (tar compressed with Zstandard), "TARLZ4" (tar compressed with LZ4), "ZIP"
+     * "DEDUP" (meaning the shared {@link SnapshotStore}) or "UNPACKED" (meaning an {@link UnpackedTree}).
      */
     private final String archiveMethod;
 
@@ -92,6 +116,49 @@ public class CloneWorkspacePublisher extends Recorder {
      * If true, don't use the Ant default file glob excludes.
      */
     private final boolean overrideDefaultExcludes;
+
+    /**
+     * With the "DEDUP" method, how many snapshots in a row can be taken incrementally (reusing the digests of the files
+     * that look unchanged since the previous snapshot) before the whole workspace gets digested again.
+     * 0 means always take them incrementally.
+     */
+    private int fullScanInterval;
+
+    /**
+     * With the "TAR" method, how many threads compress the archive. 0 or 1 means a plain, single-threaded gzip stream.
+     */
+    private int compressionThreads;
+
+    /**
+     * With the "TARZSTD" and "TARLZ4" methods, the compression level. 0 means the default level of each.
+     */
+    private int compressionLevel;
+
+    /**
+     * How many of the most recent snapshots are kept. 0 means 1, the one children restore.
+     */
+    private int retainSnapshots;
+
+    /**
+     * How many hours older snapshots are kept for. 0 means they're deleted as soon as they aren't needed anymore.
+     */
+    private int retainHours;
+
+    /**
+     * If true, the files to archive are copied aside on the node, and the build doesn't wait for them to be archived.
+     */
+    private boolean archiveInBackground;
+
+    /**
+     * Additional snapshots archived next to the main one. May be null.
+     */
+    private List<NamedSnapshot> namedSnapshots;
+
+    /**
+     * How many threads walk the workspace to find the files to archive. 0 or 1 means a single one.
+     */
+    private int scanThreads;
+
     @DataBoundConstructor
     public CloneWorkspacePublisher(String workspaceGlob, String workspaceExcludeGlob, String criteria, String archiveMethod, boolean overrideDefaultExcludes) {
         this.workspaceGlob = workspaceGlob.trim();
@@ -130,6 +197,81 @@ public class CloneWorkspacePublisher extends Recorder {
         return overrideDefaultExcludes;
     }
 
+    public int getFullScanInterval() {
+        return fullScanInterval;
+    }
+
+    @DataBoundSetter
+    public void setFullScanInterval(int fullScanInterval) {
+        this.fullScanInterval = Math.max(0, fullScanInterval);
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    @DataBoundSetter
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = Math.max(0, compressionThreads);
+    }
+
+    public int getRetainSnapshots() {
+        return Math.max(1, retainSnapshots);
+    }
+
+    @DataBoundSetter
+    public void setRetainSnapshots(int retainSnapshots) {
+        this.retainSnapshots = Math.max(1, retainSnapshots);
+    }
+
+    public int getRetainHours() {
+        return retainHours;
+    }
+
+    @DataBoundSetter
+    public void setRetainHours(int retainHours) {
+        this.retainHours = Math.max(0, retainHours);
+    }
+
+    public boolean isArchiveInBackground() {
+        return archiveInBackground;
+    }
+
+    @DataBoundSetter
+    public void setArchiveInBackground(boolean archiveInBackground) {
+        this.archiveInBackground = archiveInBackground;
+    }
+
+    public List<NamedSnapshot> getNamedSnapshots() {
+        return namedSnapshots != null ? namedSnapshots : Collections.<NamedSnapshot>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setNamedSnapshots(List<NamedSnapshot> namedSnapshots) {
+        if (namedSnapshots != null) {
+            NamedSnapshot.checkNames(namedSnapshots);
+        }
+        this.namedSnapshots = namedSnapshots != null && !namedSnapshots.isEmpty() ? new ArrayList<NamedSnapshot>(namedSnapshots) : null;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    @DataBoundSetter
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(0, scanThreads);
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    @DataBoundSetter
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
         Result criteriaResult = CloneWorkspaceUtil.getResultForCriteria(criteria);
@@ -140,23 +282,13 @@ public class CloneWorkspacePublisher extends Recorder {
             realIncludeGlob = "**/*";
         }
         else {
-            try {
-                realIncludeGlob = build.getEnvironment(listener).expand(workspaceGlob);
-            } catch (IOException e) {
-                // We couldn't get an environment for some reason, so we'll just use the original.
-                realIncludeGlob = workspaceGlob;
-            }
+            realIncludeGlob = expand(build, listener, workspaceGlob);
         }
         
         String realExcludeGlob = null;
         // Default to empty if no glob is specified.
         if (Util.fixNull(workspaceExcludeGlob).length()!=0) {
-            try {
-                realExcludeGlob = build.getEnvironment(listener).expand(workspaceExcludeGlob);
-            } catch (IOException e) {
-                // We couldn't get an environment for some reason, so we'll just use the original.
-                realExcludeGlob = workspaceExcludeGlob;
-            }
+            realExcludeGlob = expand(build, listener, workspaceExcludeGlob);
         }
 
         Result buildResult = build.getResult();
@@ -166,6 +298,13 @@ public class CloneWorkspacePublisher extends Recorder {
             if (ws==null) { // #3330: slave down?
                 return true;
             }
+            try {
+                // they name directories of the build
+                NamedSnapshot.checkNames(getNamedSnapshots());
+            } catch (Failure e) {
+                listener.error(Messages.CloneWorkspacePublisher_BadSnapshotName(e.getMessage()));
+                return false;
+            }
             
             try {
                 
@@ -176,20 +315,30 @@ public class CloneWorkspacePublisher extends Recorder {
                 }
                 // This means we found something.
                 if((includeMsg==null) && (excludeMsg==null)) {
-                    DirScanner globScanner = new DirScanner.Glob(realIncludeGlob, realExcludeGlob, !overrideDefaultExcludes);
-                    build.addAction(snapshot(build, ws, globScanner, listener, archiveMethod));
+                    DirScanner globScanner = scanThreads > 1
+                        ? new ParallelDirScanner(realIncludeGlob, realExcludeGlob, !overrideDefaultExcludes, scanThreads)
+                        : new DirScanner.Glob(realIncludeGlob, realExcludeGlob, !overrideDefaultExcludes);
 
                     // Find the next most recent build meeting this criteria with an archived snapshot.
-                    AbstractBuild<?,?> previousArchivedBuild = CloneWorkspaceUtil.getMostRecentBuildForCriteriaWithSnapshot(build.getPreviousBuild(), criteria);
-                    
-                    if (previousArchivedBuild!=null) {
-                        listener.getLogger().println(Messages.CloneWorkspacePublisher_DeletingOld(previousArchivedBuild.getDisplayName()));
-                        try {
-                            File oldWss = new File(previousArchivedBuild.getRootDir(), CloneWorkspaceUtil.getFileNameForMethod(archiveMethod));
-                            Util.deleteFile(oldWss);
-                        } catch (IOException e) {
-                           e.printStackTrace(listener.error(e.getMessage()));
-                        }
+                    AbstractBuild<?,?> previousArchivedBuild = CloneWorkspaceUtil.getMostRecentBuildForCriteriaWithSnapshot(build.getProject(), criteria);
+                    if (previousArchivedBuild != null && previousArchivedBuild.getNumber() > build.getNumber()) {
+                        // a more recent build completed while this one was running, only look at the ones before this one
+                        previousArchivedBuild = CloneWorkspaceUtil.getMostRecentBuildForCriteriaWithSnapshot(build.getPreviousBuild(), criteria);
+                    }
+                    WorkspaceSnapshot previousSnapshot = previousArchivedBuild != null ? previousArchivedBuild.getAction(WorkspaceSnapshot.class) : null;
+
+                    // archived before the main snapshot, so that they're there by the time children can see it
+                    NamedSnapshots named = snapshotNamed(build, ws, listener, previousArchivedBuild);
+                    if (named != null) {
+                        build.addAction(named);
+                    }
+
+                    FilePath tmp = WorkspaceList.tempDir(ws);
+                    if (archiveInBackground && tmp != null) {
+                        snapshotInBackground(build, ws, tmp, globScanner, listener, previousArchivedBuild, previousSnapshot);
+                    } else {
+                        build.addAction(snapshot(build, ws, globScanner, listener, archiveMethod, previousSnapshot));
+                        archived(build, previousArchivedBuild);
                     }
 
                     return true;
@@ -216,36 +365,531 @@ public class CloneWorkspacePublisher extends Recorder {
         }
     }        
 
+    private static String expand(AbstractBuild<?,?> build, TaskListener listener, String glob) throws InterruptedException {
+        try {
+            return build.getEnvironment(listener).expand(glob);
+        } catch (IOException e) {
+            // We couldn't get an environment for some reason, so we'll just use the original.
+            return glob;
+        }
+    }
+
+    /**
+     * Archives the {@link NamedSnapshot}s.
+     *
+     * @return null if there are none.
+     */
+    private NamedSnapshots snapshotNamed(AbstractBuild<?,?> build, FilePath ws, TaskListener listener, AbstractBuild<?,?> previousArchivedBuild) throws IOException, InterruptedException {
+        if (getNamedSnapshots().isEmpty()) {
+            return null;
+        }
+        NamedSnapshots previous = previousArchivedBuild != null ? previousArchivedBuild.getAction(NamedSnapshots.class) : null;
+        NamedSnapshots named = new NamedSnapshots();
+        for (NamedSnapshot ns : getNamedSnapshots()) {
+            String includes = expand(build, listener, ns.getWorkspaceGlob());
+            String excludes = ns.getWorkspaceExcludeGlob() != null ? expand(build, listener, ns.getWorkspaceExcludeGlob()) : null;
+            String msg = ws.validateAntFileMask(includes);
+            if (msg != null) {
+                listener.getLogger().println(Messages.CloneWorkspacePublisher_NoMatchFound(includes, msg));
+                continue;
+            }
+            listener.getLogger().println(Messages.CloneWorkspacePublisher_ArchivingNamed(ns.getName()));
+            DirScanner scanner = scanThreads > 1
+                ? new ParallelDirScanner(includes, excludes, !overrideDefaultExcludes, scanThreads)
+                : new DirScanner.Glob(includes, excludes, !overrideDefaultExcludes);
+            named.put(ns.getName(), snapshot(build, ws, scanner, listener, ns.getArchiveMethod(),
+                previous != null ? previous.get(ns.getName()) : null, ns.getName()));
+        }
+        return named;
+    }
+
+    /**
+     * Sets the files to archive aside on the node, so that the build can complete while they get archived
+     * in the background, and the next build can use the workspace meanwhile. A {@link PendingSnapshot} stands in for
+     * the snapshot until then.
+     *
+     * <p>
+     * Where the file system supports copy-on-write copies, the workspace is cloned, which takes next to no time or space
+     * whatever its size. Otherwise, the files to archive are copied. Either way they keep their timestamps to the
+     * millisecond, so that the snapshot doesn't digest again files that haven't changed since the previous one.
+     */
+    private void snapshotInBackground(final AbstractBuild<?,?> build, FilePath ws, FilePath tmp, DirScanner scanner, TaskListener listener,
+                                      final AbstractBuild<?,?> previousArchivedBuild, final WorkspaceSnapshot previousSnapshot) throws IOException, InterruptedException {
+        deleteStaleStagingDirs(build.getProject(), tmp);
+        final FilePath staging = tmp.child(STAGING_DIR_PREFIX + build.getNumber());
+        staging.deleteRecursive();
+        final DirScanner stagedScanner;
+        if (ws.act(new Clone(staging.getRemote()))) {
+            stagedScanner = scanner;
+            listener.getLogger().println(Messages.CloneWorkspacePublisher_ArchivingInBackgroundCloned(BACKGROUND_LOG_FILE_NAME));
+        } else {
+            int files = ws.act(new Stage(scanner, staging.getRemote()));
+            stagedScanner = new DirScanner.Full();
+            listener.getLogger().println(Messages.CloneWorkspacePublisher_ArchivingInBackground(files, BACKGROUND_LOG_FILE_NAME));
+        }
+        final PendingSnapshot pending = new PendingSnapshot(archiveMethod, build.getBuiltOnStr(), staging.getRemote());
+        build.addAction(pending);
+
+        Computer.threadPoolForRemoting.submit(() -> {
+            File log = new File(build.getRootDir(), BACKGROUND_LOG_FILE_NAME);
+            try (ACLContext ctx = ACL.as2(ACL.SYSTEM2);
+                 StreamTaskListener l = new StreamTaskListener(log, StandardCharsets.UTF_8)) {
+                try {
+                    WorkspaceSnapshot previous = previousSnapshot instanceof PendingSnapshot
+                        ? ((PendingSnapshot) previousSnapshot).await(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+                        : previousSnapshot;
+                    WorkspaceSnapshot snapshot = snapshot(build, staging, stagedScanner, l, archiveMethod, previous);
+                    build.addAction(snapshot);
+                    build.removeAction(pending);
+                    pending.complete(snapshot);
+                    build.save();
+                    archived(build, previousArchivedBuild);
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    e.printStackTrace(l.error(Messages.CloneWorkspacePublisher_FailedToArchive(workspaceGlob)));
+                    build.removeAction(pending);
+                    pending.fail();
+                    build.save();
+                } finally {
+                    staging.deleteRecursive();
+                }
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Failed to archive the workspace of " + build + " in the background", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes what was set aside for builds that aren't being archived in the background anymore,
+     * typically because Jenkins was restarted meanwhile.
+     */
+    private static void deleteStaleStagingDirs(AbstractProject<?,?> project, FilePath tmp) throws IOException, InterruptedException {
+        if (!tmp.isDirectory()) {
+            return;
+        }
+        for (FilePath dir : tmp.listDirectories()) {
+            if (!dir.getName().startsWith(STAGING_DIR_PREFIX)) {
+                continue;
+            }
+            AbstractBuild<?,?> b;
+            try {
+                b = project.getBuildByNumber(Integer.parseInt(dir.getName().substring(STAGING_DIR_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            WorkspaceSnapshot s = b != null ? b.getAction(WorkspaceSnapshot.class) : null;
+            if (!(s instanceof PendingSnapshot) || ((PendingSnapshot) s).getState() != PendingSnapshot.State.PENDING) {
+                dir.deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Clones the workspace with copy-on-write copies.
+     *
+     * @return false if the platform or file system can't do that, and nothing was cloned.
+     */
+    private static final class Clone extends MasterToSlaveFileCallable<Boolean> {
+        private final String staging;
+
+        Clone(String staging) {
+            this.staging = staging;
+        }
+
+        public Boolean invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File dir = new File(staging);
+            Util.createDirectories(dir.toPath());
+            if (UnpackedTree.reflink(ws, dir)) {
+                return true;
+            }
+            Util.deleteRecursive(dir);
+            return false;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Copies the files selected by the scanner aside. Unlike {@link FilePath#copyRecursiveTo}, which goes through a tar
+     * and truncates timestamps to the second, this keeps them as they are.
+     *
+     * @return how many files were copied.
+     */
+    private static final class Stage extends MasterToSlaveFileCallable<Integer> {
+        private final DirScanner scanner;
+        private final String staging;
+
+        Stage(DirScanner scanner, String staging) {
+            this.scanner = scanner;
+            this.staging = staging;
+        }
+
+        public Integer invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            final Path dir = new File(staging).toPath();
+            final int[] files = new int[1];
+            Util.createDirectories(dir);
+            scanner.scan(ws, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    Path p = dir.resolve(relativePath);
+                    if (f.isDirectory()) {
+                        Util.createDirectories(p);
+                        int mode = IOUtils.mode(f);
+                        try {
+                            if (mode != -1) {
+                                RestorePipeline.chmod(p.toFile(), mode);
+                            }
+                        } catch (InterruptedException e) {
+                            throw (IOException) new InterruptedIOException().initCause(e);
+                        }
+                    } else {
+                        Util.createDirectories(p.getParent());
+                        Files.copy(f.toPath(), p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                        files[0]++;
+                    }
+                }
+
+                @Override
+                public boolean understandsSymlink() {
+                    return true;
+                }
+
+                @Override
+                public void visitSymlink(File link, String target, String relativePath) throws IOException {
+                    Path p = dir.resolve(relativePath);
+                    Util.createDirectories(p.getParent());
+                    Files.deleteIfExists(p);
+                    try {
+                        new FilePath(p.toFile()).symlinkTo(target, TaskListener.NULL);
+                    } catch (InterruptedException e) {
+                        throw (IOException) new InterruptedIOException().initCause(e);
+                    }
+                    files[0]++;
+                }
+            });
+            return files[0];
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Lets older snapshots be deleted in the background, once no child needs them anymore.
+     */
+    private static void archived(AbstractBuild<?,?> build, AbstractBuild<?,?> previousArchivedBuild) {
+        SnapshotReaper reaper = SnapshotReaper.get();
+        if (previousArchivedBuild != null) {
+            reaper.track(previousArchivedBuild); // in case it was archived before snapshots were tracked
+        }
+        reaper.track(build);
+        reaper.schedule(build.getProject());
+    }
+
     public WorkspaceSnapshot snapshot(AbstractBuild<?,?> build, FilePath ws, DirScanner scanner, TaskListener listener, String archiveMethod) throws IOException, InterruptedException {
-        File wss = new File(build.getRootDir(), CloneWorkspaceUtil.getFileNameForMethod(archiveMethod));
-        if (archiveMethod.equals("ZIP")) {
-            try (FileOutputStream f = new FileOutputStream(wss);
+        return snapshot(build, ws, scanner, listener, archiveMethod, null);
+    }
+
+    /**
+     * @param previous
+     *      Snapshot of the previous archived build, which the new one may be taken incrementally against. May be null.
+     */
+    WorkspaceSnapshot snapshot(AbstractBuild<?,?> build, FilePath ws, DirScanner scanner, TaskListener listener, String archiveMethod, WorkspaceSnapshot previous) throws IOException, InterruptedException {
+        return snapshot(build, ws, scanner, listener, archiveMethod, previous, null);
+    }
+
+    /**
+     * @param name
+     *      Name of the {@link NamedSnapshot} being archived, or null for the main snapshot.
+     */
+    private WorkspaceSnapshot snapshot(AbstractBuild<?,?> build, FilePath ws, DirScanner scanner, TaskListener listener, String archiveMethod, WorkspaceSnapshot previous, String name) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        SnapshotMetricsAction metrics = new SnapshotMetricsAction(SnapshotMetricsAction.Kind.SNAPSHOT,
+            build.getParent().getFullName(), build.getNumber(), name, archiveMethod);
+
+        if (archiveMethod.equals("DEDUP")) {
+            String baseId = null;
+            int depth = 0;
+            if (previous instanceof WorkspaceSnapshotDedup) {
+                WorkspaceSnapshotDedup base = (WorkspaceSnapshotDedup) previous;
+                if (fullScanInterval == 0 || base.getDepth() < fullScanInterval) {
+                    baseId = base.getManifestId();
+                    depth = base.getDepth() + 1;
+                } else {
+                    listener.getLogger().println(Messages.CloneWorkspacePublisher_FullScan(base.getDepth()));
+                }
+            }
+            WorkspaceSnapshotDedup snapshot = new WorkspaceSnapshotDedup(SnapshotStore.get().publish(ws, scanner, baseId, listener, metrics), depth);
+            return recorded(build, metrics, start, snapshot);
+        }
+
+        File dir = CloneWorkspaceUtil.getSnapshotDir(build.getRootDir(), name);
+        dir.mkdirs();
+        File wss = new File(dir, CloneWorkspaceUtil.getFileNameForMethod(archiveMethod));
+        SnapshotManifest manifest;
+        WorkspaceArchiver.Archived archived = null;
+        ArchiveIndex index = null;
+        ArchiveSnapshot snapshot;
+        if (archiveMethod.equals("UNPACKED")) {
+            manifest = UnpackedTree.publish(ws, scanner, wss);
+
+            snapshot = new WorkspaceSnapshotUnpacked();
+        } else if (archiveMethod.equals("ZIP")) {
+            try (WorkspaceArchiver.TimedOutputStream f = new WorkspaceArchiver.TimedOutputStream(new FileOutputStream(wss));
                  OutputStream os = new BufferedOutputStream(f)) {
-                ws.zip(os, scanner);
+                archived = WorkspaceArchiver.archive(ws, scanner, "ZIP", 0, os);
+                manifest = archived.manifest;
+                os.close();
+                metrics.writeMillis = TimeUnit.NANOSECONDS.toMillis(f.getNanos());
             }
 
-            return new WorkspaceSnapshotZip();
+            snapshot = new WorkspaceSnapshotZip();
+        } else if (archiveMethod.equals("TARZSTD") || archiveMethod.equals("TARLZ4")) {
+            int level = WorkspaceArchiver.clampLevel(archiveMethod, compressionLevel);
+            if (level != compressionLevel) {
+                listener.getLogger().println(Messages.CloneWorkspacePublisher_CompressionLevelClamped(
+                    String.valueOf(compressionLevel), archiveMethod, String.valueOf(level)));
+            }
+            long begin = System.currentTimeMillis();
+            try (WorkspaceArchiver.TimedOutputStream f = new WorkspaceArchiver.TimedOutputStream(new FileOutputStream(wss));
+                 OutputStream os = new BufferedOutputStream(f)) {
+                archived = WorkspaceArchiver.archive(ws, scanner, archiveMethod, level, os);
+                manifest = archived.manifest;
+                os.close();
+                metrics.writeMillis = TimeUnit.NANOSECONDS.toMillis(f.getNanos());
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+            listener.getLogger().println(Messages.CloneWorkspacePublisher_Archived(
+                Functions.humanReadableByteSize(manifest.getTotalSize()),
+                Functions.humanReadableByteSize(wss.length()),
+                elapsed,
+                Functions.humanReadableByteSize(manifest.getTotalSize() * 1000 / elapsed)));
+
+            snapshot = archiveMethod.equals("TARZSTD") ? new WorkspaceSnapshotTarZstd() : new WorkspaceSnapshotTarLz4();
         } else {
-            try (FileOutputStream f = new FileOutputStream(wss);
-                 OutputStream os = new BufferedOutputStream(FilePath.TarCompression.GZIP.compress(f))) {
-                ws.tar(os, scanner);
+            // Always compressed in independent blocks, even on a single thread, so that the index can point into them.
+            int threads = Math.max(1, compressionThreads);
+            long begin = System.currentTimeMillis();
+            try (WorkspaceArchiver.TimedOutputStream f = new WorkspaceArchiver.TimedOutputStream(new FileOutputStream(wss));
+                 ParallelGZIPOutputStream gz = new ParallelGZIPOutputStream(f, threads);
+                 OutputStream os = new BufferedOutputStream(gz)) {
+                archived = WorkspaceArchiver.archive(ws, scanner, "TAR", 0, os);
+                manifest = archived.manifest;
+                os.close(); // so that the counts include the last blocks
+                metrics.writeMillis = TimeUnit.NANOSECONDS.toMillis(f.getNanos());
+
+                long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+                listener.getLogger().println(Messages.CloneWorkspacePublisher_Compressed(
+                    Functions.humanReadableByteSize(gz.getBytesIn()),
+                    Functions.humanReadableByteSize(gz.getBytesOut()),
+                    elapsed,
+                    Functions.humanReadableByteSize(gz.getBytesIn() * 1000 / elapsed),
+                    threads));
+                if (archived.offsets != null) {
+                    index = new ArchiveIndex(archived.offsets, gz.getBlockOffsets(), gz.getBlockStarts(), gz.getBytesOut(), gz.getBytesIn());
+                }
             }
 
-            return new WorkspaceSnapshotTar();
+            snapshot = new WorkspaceSnapshotTar();
         }
+        manifest.write(new File(dir, CloneWorkspaceUtil.MANIFEST_FILE_NAME));
+        if (index != null) {
+            index.write(new File(dir, CloneWorkspaceUtil.INDEX_FILE_NAME));
+        }
+        snapshot.name = name;
+
+        metrics.entries = manifest.size();
+        metrics.rawBytes = manifest.getTotalSize();
+        metrics.storedBytes = archived != null ? wss.length() : manifest.getTotalSize();
+        if (archived != null) {
+            metrics.scanMillis = TimeUnit.NANOSECONDS.toMillis(archived.scanNanos);
+            metrics.compressionMillis = TimeUnit.NANOSECONDS.toMillis(archived.packNanos);
+            metrics.transferMillis = TimeUnit.NANOSECONDS.toMillis(archived.transferNanos);
+        }
+        return recorded(build, metrics, start, snapshot);
+    }
+
+    /**
+     * Attaches the metrics of a snapshot to its build, and adds them up with the other snapshots of the project.
+     */
+    private static WorkspaceSnapshot recorded(AbstractBuild<?,?> build, SnapshotMetricsAction metrics, long start, WorkspaceSnapshot snapshot) {
+        metrics.totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        build.addAction(metrics);
+        JobSnapshotMetrics.record(metrics);
+        return snapshot;
     }
 
-    public static final class WorkspaceSnapshotTar extends WorkspaceSnapshot {
-        public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, TaskListener listener) throws IOException, InterruptedException {
-            File wss = new File(owner.getRootDir(), CloneWorkspaceUtil.getFileNameForMethod("TAR"));
-            new FilePath(wss).untar(dst, FilePath.TarCompression.GZIP);
+    /**
+     * Snapshot archived into a single file in the build directory, with its manifest next to it.
+     */
+    public abstract static class ArchiveSnapshot extends CloneWorkspaceSnapshot {
+        /**
+         * Name of the {@link NamedSnapshot} this is, or null for the main snapshot of the build.
+         */
+        private String name;
+
+        /**
+         * The archive method the snapshot was taken with.
+         */
+        public abstract String getArchiveMethod();
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Directory holding the archive and its manifest.
+         */
+        public File getDir(AbstractBuild<?,?> owner) {
+            return CloneWorkspaceUtil.getSnapshotDir(owner.getRootDir(), name);
+        }
+
+        public File getArchive(AbstractBuild<?,?> owner) {
+            return new File(getDir(owner), CloneWorkspaceUtil.getFileNameForMethod(getArchiveMethod()));
+        }
+
+        public SnapshotManifest getManifest(AbstractBuild<?,?> owner) throws IOException {
+            File f = new File(getDir(owner), CloneWorkspaceUtil.MANIFEST_FILE_NAME);
+            return f.exists() ? SnapshotManifest.read(f) : null;
+        }
+
+        public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            restore(owner, dst, filter, listener);
+        }
+
+        @Override
+        RestorePipeline.Stats restore(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            File archive = getArchive(owner);
+            SnapshotManifest manifest = getManifest(owner);
+            RestorePipeline.Stats stats = filter != null ? restorePartially(owner, archive, manifest, dst, filter, listener) : null;
+            if (stats == null) {
+                stats = restoreFully(owner, archive, manifest, dst, filter, listener);
+            }
+            stats.print(listener);
+            return stats;
+        }
+
+        private RestorePipeline.Stats restoreFully(AbstractBuild<?,?> owner, File archive, SnapshotManifest manifest, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            FilePath cached = AgentSnapshotCache.fetch(owner, archive, dst, listener);
+            if (cached != null) {
+                try {
+                    return WorkspaceArchiver.extract(cached, getArchiveMethod(), dst, filter, manifest);
+                } catch (FileNotFoundException | NoSuchFileException e) {
+                    // evicted by a concurrent restore before we got to read it
+                    LOGGER.log(Level.FINE, "Cached copy of " + archive + " vanished", e);
+                }
+            }
+            return WorkspaceArchiver.extract(new FilePath(archive), getArchiveMethod(), dst, filter, manifest);
+        }
+
+        /**
+         * Only reads the parts of the archive holding the entries accepted by the filter, if the format allows it.
+         *
+         * @return null if the archive has to be read from start to end.
+         */
+        private RestorePipeline.Stats restorePartially(AbstractBuild<?,?> owner, File archive, SnapshotManifest manifest, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            if (getArchiveMethod().equals("ZIP")) {
+                return WorkspaceArchiver.extractZip(archive, dst, filter, manifest);
+            }
+            File indexFile = new File(getDir(owner), CloneWorkspaceUtil.INDEX_FILE_NAME);
+            if (!getArchiveMethod().equals("TAR") || !indexFile.exists()) {
+                return null;
+            }
+            ArchiveIndex.Selection selection = manifest != null
+                ? ArchiveIndex.read(indexFile).select(manifest, filter, archive.length())
+                : null;
+            if (selection == null) {
+                return null;
+            }
+            listener.getLogger().println(Messages.CloneWorkspacePublisher_PartialRestore(
+                Functions.humanReadableByteSize(selection.getCompressedLength()),
+                Functions.humanReadableByteSize(archive.length())));
+            return WorkspaceArchiver.extract(archive, selection, dst, filter, manifest);
+        }
+    }
+
+    public static final class WorkspaceSnapshotTar extends ArchiveSnapshot {
+        public String getArchiveMethod() {
+            return "TAR";
         }
     }
 
-    public static final class WorkspaceSnapshotZip extends WorkspaceSnapshot {
-        public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, TaskListener listener) throws IOException, InterruptedException {
-            File wss = new File(owner.getRootDir(), CloneWorkspaceUtil.getFileNameForMethod("ZIP"));
-            new FilePath(wss).unzip(dst);
+    public static final class WorkspaceSnapshotTarZstd extends ArchiveSnapshot {
+        public String getArchiveMethod() {
+            return "TARZSTD";
+        }
+    }
+
+    public static final class WorkspaceSnapshotTarLz4 extends ArchiveSnapshot {
+        public String getArchiveMethod() {
+            return "TARLZ4";
+        }
+    }
+
+    public static final class WorkspaceSnapshotZip extends ArchiveSnapshot {
+        public String getArchiveMethod() {
+            return "ZIP";
+        }
+    }
+
+    /**
+     * Snapshot kept as an {@link UnpackedTree} in the build directory.
+     */
+    public static final class WorkspaceSnapshotUnpacked extends ArchiveSnapshot {
+        public String getArchiveMethod() {
+            return "UNPACKED";
+        }
+
+        @Override
+        RestorePipeline.Stats restore(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            SnapshotManifest manifest = getManifest(owner);
+            if (manifest == null) {
+                throw new IOException("Missing manifest of the workspace snapshot of " + owner);
+            }
+            return UnpackedTree.restore(getArchive(owner), manifest, dst, filter, listener);
+        }
+    }
+
+    /**
+     * Snapshot kept in the shared {@link SnapshotStore}; the build only records which manifest is its own.
+     */
+    public static final class WorkspaceSnapshotDedup extends CloneWorkspaceSnapshot {
+        private final String manifestId;
+
+        /**
+         * Number of snapshots taken incrementally in a row, up to and including this one. 0 if the whole workspace was digested.
+         */
+        private final int depth;
+
+        public WorkspaceSnapshotDedup(String manifestId) {
+            this(manifestId, 0);
+        }
+
+        public WorkspaceSnapshotDedup(String manifestId, int depth) {
+            this.manifestId = manifestId;
+            this.depth = depth;
+        }
+
+        public String getManifestId() {
+            return manifestId;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public SnapshotManifest getManifest(AbstractBuild<?,?> owner) throws IOException {
+            return SnapshotStore.get().getManifest(manifestId);
+        }
+
+        public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            restore(owner, dst, filter, listener);
+        }
+
+        @Override
+        RestorePipeline.Stats restore(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+            RestorePipeline.Stats stats = new RestorePipeline.Stats();
+            SnapshotStore.get().restore(manifestId, dst, filter, stats);
+            return stats;
         }
     }
 
@@ -267,6 +911,33 @@ public class CloneWorkspacePublisher extends Recorder {
             return FilePath.validateFileMask(project.getSomeWorkspace(),value);
         }
 
+        /**
+         * Checks the compression level against the range the archive method takes.
+         */
+        public FormValidation doCheckCompressionLevel(@QueryParameter String archiveMethod, @QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) {
+                return FormValidation.ok();
+            }
+            int level;
+            try {
+                level = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return FormValidation.error(Messages.CloneWorkspacePublisher_CompressionLevelNotANumber());
+            }
+            if (level == 0) {
+                return FormValidation.ok();
+            }
+            if (!WorkspaceArchiver.hasLevels(archiveMethod)) {
+                return FormValidation.warning(Messages.CloneWorkspacePublisher_CompressionLevelIgnored());
+            }
+            if (WorkspaceArchiver.clampLevel(archiveMethod, level) != level) {
+                return FormValidation.error(Messages.CloneWorkspacePublisher_CompressionLevelOutOfRange(
+                    String.valueOf(WorkspaceArchiver.minLevel(archiveMethod)), String.valueOf(WorkspaceArchiver.maxLevel(archiveMethod))));
+            }
+            return FormValidation.ok();
+        }
+
         @Override
         public CloneWorkspacePublisher newInstance(StaplerRequest2 req, JSONObject formData) throws FormException {
             return req.bindJSON(CloneWorkspacePublisher.class,formData);
@@ -278,6 +949,17 @@ public class CloneWorkspacePublisher extends Recorder {
     }
 
 
+    /**
+     * Log of archiving a snapshot in the background, in the build directory.
+     */
+    static final String BACKGROUND_LOG_FILE_NAME = "clone-workspace-snapshot.log";
+
+    /**
+     * Prefix of the directories files are set aside in to be archived in the background, in the temporary directory
+     * of the workspace, followed by the build number.
+     */
+    private static final String STAGING_DIR_PREFIX = "clone-workspace-";
+
     private static final Logger LOGGER = Logger.getLogger(CloneWorkspacePublisher.class.getName());
 
 }
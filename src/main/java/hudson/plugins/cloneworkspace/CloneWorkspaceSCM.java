@@ -23,8 +23,6 @@
  */
 package hudson.plugins.cloneworkspace;
 
-import hudson.matrix.MatrixConfiguration;
-import hudson.matrix.MatrixProject;
 import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.scm.ChangeLogParser;
@@ -39,14 +37,27 @@ import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.model.ParametersAction;
 import hudson.model.BuildListener;
+import hudson.model.AutoCompletionCandidates;
+import hudson.model.Cause;
+import hudson.model.Run;
+import hudson.model.Queue;
+import hudson.model.Item;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
 import hudson.model.Hudson;
 import hudson.model.Result;
 import hudson.model.PermalinkProjectAction.Permalink;
+import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.FilePath;
 import hudson.WorkspaceSnapshot;
 import hudson.PermalinkList;
 import hudson.Extension;
+import hudson.util.FormValidation;
+import hudson.util.HttpResponses;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import static hudson.Util.fixEmptyAndTrim;
 
 import java.io.IOException;
@@ -55,23 +66,28 @@ import java.io.Serializable;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 /**
  * {@link SCM} that inherits the workspace from another build through {@link WorkspaceSnapshot}.
@@ -92,12 +108,132 @@ public class CloneWorkspaceSCM extends SCM {
      */
     public String criteria;
 
+    /**
+     * If true, only write the files that differ from what the previous restore left in the workspace,
+     * instead of wiping it and restoring everything.
+     */
+    private boolean incrementalRestore;
+
+    /**
+     * If true, a build is scheduled as soon as the parent completes a build meeting the criteria with a snapshot,
+     * rather than waiting for this project to poll.
+     */
+    private boolean triggerOnSnapshot;
+
+    /**
+     * Comma-separated Ant-style patterns of the files to restore out of the snapshot. Null or empty means all of them.
+     */
+    private String includes;
+
+    /**
+     * Comma-separated Ant-style patterns of the files not to restore out of the snapshot.
+     */
+    private String excludes;
+
+    /**
+     * Name of the {@link NamedSnapshot} of the parent to restore. Null means its main snapshot.
+     */
+    private String snapshotName;
+
+    /**
+     * If true, the changelog of a build only refers to the range of parent builds its changes come from,
+     * as a {@link MergedChangeLogSet}, instead of being a copy of the parent's changelog.
+     */
+    private boolean referenceChangeLog;
+
     @DataBoundConstructor
     public CloneWorkspaceSCM(String parentJobName, String criteria) {
         this.parentJobName = parentJobName;
         this.criteria = criteria;
     }
 
+    public boolean isIncrementalRestore() {
+        return incrementalRestore;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalRestore(boolean incrementalRestore) {
+        this.incrementalRestore = incrementalRestore;
+    }
+
+    public boolean isTriggerOnSnapshot() {
+        return triggerOnSnapshot;
+    }
+
+    @DataBoundSetter
+    public void setTriggerOnSnapshot(boolean triggerOnSnapshot) {
+        this.triggerOnSnapshot = triggerOnSnapshot;
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    @DataBoundSetter
+    public void setIncludes(String includes) {
+        this.includes = fixEmptyAndTrim(includes);
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    @DataBoundSetter
+    public void setExcludes(String excludes) {
+        this.excludes = fixEmptyAndTrim(excludes);
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotName(String snapshotName) {
+        this.snapshotName = fixEmptyAndTrim(snapshotName);
+    }
+
+    public boolean isReferenceChangeLog() {
+        return referenceChangeLog;
+    }
+
+    @DataBoundSetter
+    public void setReferenceChangeLog(boolean referenceChangeLog) {
+        this.referenceChangeLog = referenceChangeLog;
+    }
+
+    /**
+     * The snapshot of the given build this restores.
+     *
+     * @return null if it has none.
+     */
+    private WorkspaceSnapshot lookup(AbstractBuild<?,?> b) {
+        if (snapshotName == null) {
+            return b.getAction(WorkspaceSnapshot.class);
+        }
+        NamedSnapshots named = b.getAction(NamedSnapshots.class);
+        return named != null ? named.get(snapshotName) : null;
+    }
+
+    /**
+     * Builds the filter selecting what to restore out of the snapshot, expanding variables in the patterns.
+     *
+     * @return null to restore everything.
+     */
+    private CloneWorkspaceSnapshot.Filter getFilter(AbstractBuild<?,?> build, TaskListener listener) throws InterruptedException {
+        if (includes == null && excludes == null) {
+            return null;
+        }
+        String realIncludes = includes, realExcludes = excludes;
+        try {
+            EnvVars env = build.getEnvironment(listener);
+            realIncludes = includes != null ? env.expand(includes) : null;
+            realExcludes = excludes != null ? env.expand(excludes) : null;
+        } catch (IOException e) {
+            // We couldn't get an environment for some reason, so we'll just use the original.
+        }
+        return CloneWorkspaceSnapshot.glob(realIncludes, realExcludes);
+    }
+
     /**
      * Get the parent job name. Process it for parameters if needed.
      *
@@ -142,28 +278,97 @@ public class CloneWorkspaceSCM extends SCM {
         if(b==null)
             throw new ResolvedFailedException(Messages.CloneWorkspaceSCM_NoBuild(criteria,parentJob));
 
-        WorkspaceSnapshot snapshot = b.getAction(WorkspaceSnapshot.class);
+        WorkspaceSnapshot snapshot = lookup(b);
         if(snapshot==null)
-            throw new ResolvedFailedException(Messages.CloneWorkspaceSCM_NoWorkspace(parentJob,criteria));
+            throw new ResolvedFailedException(snapshotName != null
+                ? Messages.CloneWorkspaceSCM_NoNamedSnapshot(snapshotName, b.getFullDisplayName())
+                : Messages.CloneWorkspaceSCM_NoWorkspace(parentJob,criteria));
 
         return new Snapshot(snapshot,b);
     }
 
+    /**
+     * Attaches the metrics of a restore to the build, and adds them up with the other restores from the parent project.
+     */
+    private void recordMetrics(AbstractBuild<?,?> build, Snapshot snapshot, RestorePipeline.Stats stats, long start) {
+        String method = snapshot.snapshot instanceof CloneWorkspacePublisher.ArchiveSnapshot
+            ? ((CloneWorkspacePublisher.ArchiveSnapshot) snapshot.snapshot).getArchiveMethod()
+            : snapshot.snapshot instanceof CloneWorkspacePublisher.WorkspaceSnapshotDedup ? "DEDUP" : null;
+        SnapshotMetricsAction metrics = new SnapshotMetricsAction(SnapshotMetricsAction.Kind.RESTORE,
+            snapshot.getParent().getParent().getFullName(), snapshot.getParent().getNumber(), snapshotName, method);
+        if (stats != null) {
+            metrics.entries = stats.entries;
+            metrics.rawBytes = stats.writeBytes;
+            metrics.storedBytes = stats.transferBytes;
+            metrics.transferMillis = TimeUnit.NANOSECONDS.toMillis(stats.transferNanos);
+            metrics.compressionMillis = TimeUnit.NANOSECONDS.toMillis(stats.decompressionNanos);
+            metrics.writeMillis = TimeUnit.NANOSECONDS.toMillis(stats.writeNanos);
+        }
+        metrics.totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        build.addAction(metrics);
+        JobSnapshotMetrics.record(metrics);
+    }
+
+    /**
+     * Resolves the most recent snapshot matching the criteria older than the given build.
+     */
+    private Snapshot resolvePrevious(String parentJob, AbstractBuild<?,?> than) throws ResolvedFailedException {
+        AbstractBuild<?,?> b = CloneWorkspaceUtil.getMostRecentBuildForCriteriaWithSnapshot(than.getPreviousBuild(), criteria);
+        WorkspaceSnapshot snapshot = b != null ? lookup(b) : null;
+        if (snapshot == null) {
+            throw new ResolvedFailedException(Messages.CloneWorkspaceSCM_NoWorkspace(parentJob, criteria));
+        }
+        return new Snapshot(snapshot, b);
+    }
+
     @Override
     public boolean checkout(AbstractBuild build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile) throws IOException, InterruptedException {
         try {
-            workspace.deleteContents();
+            if (!incrementalRestore) {
+                workspace.deleteContents();
+            }
             String parentJob = getParamParentJobName(build);
             Snapshot snapshot = resolve(parentJob);
-            listener.getLogger().println("Restoring workspace from build #" + snapshot.getParent().getNumber() + " of project " + parentJob);
-            snapshot.restoreTo(workspace,listener);
+            SnapshotReaper.Lease lease = SnapshotReaper.get().lease(snapshot.getParent());
+            try {
+                while (lookup(snapshot.getParent()) != snapshot.snapshot
+                        || snapshot.snapshot instanceof PendingSnapshot) {
+                    lease.close();
+                    if (snapshot.snapshot instanceof PendingSnapshot) {
+                        // still being archived in the background
+                        listener.getLogger().println(Messages.CloneWorkspaceSCM_WaitingForSnapshot(snapshot.getParent().getFullDisplayName()));
+                        if (((PendingSnapshot) snapshot.snapshot).await(PENDING_SNAPSHOT_TIMEOUT, TimeUnit.MILLISECONDS) == null) {
+                            listener.getLogger().println(Messages.CloneWorkspaceSCM_SnapshotUnavailable(snapshot.getParent().getFullDisplayName()));
+                            snapshot = resolvePrevious(parentJob, snapshot.getParent());
+                            lease = SnapshotReaper.get().lease(snapshot.getParent());
+                            continue;
+                        }
+                    }
+                    // archived or deleted since we resolved it
+                    snapshot = resolve(parentJob);
+                    lease = SnapshotReaper.get().lease(snapshot.getParent());
+                }
+                listener.getLogger().println("Restoring workspace from build #" + snapshot.getParent().getNumber() + " of project " + parentJob);
+                CloneWorkspaceSnapshot.Filter filter = getFilter(build, listener);
+                long start = System.nanoTime();
+                RestorePipeline.Stats stats = null;
+                if (incrementalRestore) {
+                    stats = IncrementalRestore.restore(snapshot.getParent(), snapshot.snapshot, workspace, filter, listener);
+                } else if (snapshot.snapshot instanceof CloneWorkspaceSnapshot) {
+                    stats = ((CloneWorkspaceSnapshot) snapshot.snapshot).restore(snapshot.getParent(), workspace, filter, listener);
+                } else {
+                    snapshot.restoreTo(workspace,listener);
+                }
+                recordMetrics(build, snapshot, stats, start);
 
-            // write out the parent build number file
-            try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getParentBuildFile(build)), StandardCharsets.UTF_8), true)) {
-                w.println(snapshot.getParent().getNumber());
+                // remember the parent build, to tell whether there's a newer one when polling,
+                // and to keep its snapshot around while this build runs
+                build.replaceAction(new CloneWorkspaceParentAction(snapshot.getParent().getProject().getFullName(), snapshot.getParent().getNumber()));
+            } finally {
+                lease.close();
             }
             
-            return calcChangeLog(snapshot.getParent(), changelogFile, listener);
+            return calcChangeLog(build, snapshot.getParent(), changelogFile, listener);
         } catch (ResolvedFailedException e) {
             listener.error(e.getMessage()); // stack trace is meaningless
             build.setResult(Result.FAILURE);
@@ -172,9 +377,20 @@ public class CloneWorkspaceSCM extends SCM {
     }
 
     /**
-     * Called after checkout has finished to copy the changelog from the parent build.
+     * Called after checkout has finished to copy the changelog from the parent build,
+     * or to refer to the changes of the parent builds since the previous build's.
      */
-    private boolean calcChangeLog(AbstractBuild<?,?> parentBuild, File changelogFile, BuildListener listener) throws IOException, InterruptedException {
+    private boolean calcChangeLog(AbstractBuild<?,?> build, AbstractBuild<?,?> parentBuild, File changelogFile, BuildListener listener) throws IOException, InterruptedException {
+        if (referenceChangeLog) {
+            int to = parentBuild.getNumber();
+            int from = getPreviousParentBuildNumber(build, parentBuild.getProject().getFullName());
+            if (from <= 0 || from >= to) {
+                // first build, or restored an older parent build than the previous one: only that parent build's changes
+                from = to - 1;
+            }
+            MergedChangeLogSet.write(changelogFile, parentBuild.getProject().getFullName(), from, to);
+            return true;
+        }
         FilePath parentChangeLog = new FilePath(new File(parentBuild.getRootDir(), "changelog.xml"));
         if (parentChangeLog.exists()) {
             FilePath childChangeLog = new FilePath(changelogFile);
@@ -186,29 +402,46 @@ public class CloneWorkspaceSCM extends SCM {
         return true;
     }
 
+    /**
+     * Number of the build of the given parent project the closest previous build was cloned from, or 0 if unknown.
+     */
+    private static int getPreviousParentBuildNumber(AbstractBuild<?,?> build, String parentJobName) throws IOException {
+        for (AbstractBuild<?,?> b = build.getPreviousBuild(); b != null; b = b.getPreviousBuild()) {
+            CloneWorkspaceParentAction a = b.getAction(CloneWorkspaceParentAction.class);
+            if (a == null) {
+                a = migrateParentBuildFile(b);
+            }
+            if (a != null) {
+                return a.getParentJobName() == null || a.getParentJobName().equals(parentJobName) ? a.getParentBuildNumber() : 0;
+            }
+        }
+        return 0;
+    }
+
     @Override
     public ChangeLogParser createChangeLogParser() {
-        AbstractProject<?,?> p = getContainingProject();
+        AbstractProject<?,?> p = ProjectIndex.get().getOwner(this);
         AbstractBuild lastBuild = null;
         if (p != null) {
             lastBuild = p.getLastBuild();
         }
 
-        try {
-            return resolve(getParamParentJobName(lastBuild)).getParent().getProject().getScm().createChangeLogParser();
-        } catch (ResolvedFailedException e) {
-            return null;
-        } 
-    }
-
-    private AbstractProject getContainingProject() {
-        for( AbstractProject p : Hudson.getInstance().getAllItems(AbstractProject.class) ) {
-            SCM scm = p.getScm();
-            if (scm != null && scm.getClass() == this.getClass() && this.equals(scm)) {
-                return p;
+        // only the parent's SCM matters here, not which of its builds would be restored
+        String parentJob = getParamParentJobName(lastBuild);
+        AbstractProject<?,?> parent = Jenkins.get().getItemByFullName(parentJob, AbstractProject.class);
+        if (parent == null) {
+            // references to the parent's builds can still be read
+            return new MergedChangeLogSet.Parser(NullChangeLogParser.INSTANCE);
+        }
+        SCM parentScm = parent.getScm();
+        synchronized (CHANGE_LOG_PARSERS) {
+            CachedParser cached = CHANGE_LOG_PARSERS.get(parent.getFullName());
+            if (cached == null || cached.scm != parentScm) {
+                cached = new CachedParser(parentScm, new MergedChangeLogSet.Parser(parentScm.createChangeLogParser()));
+                CHANGE_LOG_PARSERS.put(parent.getFullName(), cached);
             }
+            return cached.parser;
         }
-        return null;
     }
                 
     @Override
@@ -216,56 +449,69 @@ public class CloneWorkspaceSCM extends SCM {
         return (DescriptorImpl)super.getDescriptor();
     }
 
+    /**
+     * @deprecated
+     *      The parent build is now recorded as a {@link CloneWorkspaceParentAction}.
+     *      This file is only read to migrate builds made by older versions.
+     */
+    @Deprecated
     public static File getParentBuildFile(AbstractBuild b) {
         return new File(b.getRootDir(),"cloneWorkspaceParent.txt");
     }
 
     
     /**
-     * Reads the parent build file of the specified build (or the closest, if the flag is so specified.)
+     * Finds the parent build of the specified build (or the closest, if the flag is so specified.)
+     * The first build found with a parent build file written by an older version, rather than a
+     * {@link CloneWorkspaceParentAction}, is migrated then; the builds before it never need to be.
      *
      * @param findClosest
-     *      If true, this method will go back the build history until it finds a parent build file.
-     *      A build may not have a parent build file for any number of reasons (such as failure, interruption, etc.)
+     *      If true, this method will go back the build history until it finds a build that records its parent.
+     *      A build may not have a parent for any number of reasons (such as failure, interruption, etc.)
      * @return
      *      Number of parent build
      */
     private int parseParentBuildFile(AbstractBuild<?,?> build, boolean findClosest) throws IOException {
-        int parentBuildNumber = 0; // Default to 0, so that if we don't actually find a build,
-                                   // polling et al will return true.
-
-        // If the build itself is null, just return the default.
-        if (build==null)
-            return parentBuildNumber;
-            
-        if (findClosest) {
-            for (AbstractBuild<?,?> b=build; b!=null; b=b.getPreviousBuild()) {
-                if(getParentBuildFile(b).exists()) {
-                    build = b;
-                    break;
-                }
+        for (AbstractBuild<?,?> b=build; b!=null; b=findClosest ? b.getPreviousBuild() : null) {
+            CloneWorkspaceParentAction a = b.getAction(CloneWorkspaceParentAction.class);
+            if (a == null) {
+                a = migrateParentBuildFile(b);
+            }
+            if (a != null) {
+                return a.getParentBuildNumber();
             }
         }
-        
-        {// read the parent build file of the build
-            File file = getParentBuildFile(build);
-            if(!file.exists())
-                // nothing to compare against
-                return parentBuildNumber;
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
-                String line;
-                while((line=br.readLine())!=null) {
-                    try {
-                        parentBuildNumber = Integer.parseInt(fixEmptyAndTrim(line));
-                    } catch (NumberFormatException e) {
-                        // perhaps a corrupted line. ignore
-                    }
+        // Default to 0, so that if we don't actually find a build, polling et al will return true.
+        return 0;
+    }
+
+    /**
+     * Turns the parent build file written by older versions into a {@link CloneWorkspaceParentAction}.
+     *
+     * @return null if the build has no parent build file.
+     */
+    private static CloneWorkspaceParentAction migrateParentBuildFile(AbstractBuild<?,?> build) throws IOException {
+        File file = getParentBuildFile(build);
+        if (!file.exists())
+            // nothing to compare against
+            return null;
+
+        int parentBuildNumber = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while((line=br.readLine())!=null) {
+                try {
+                    parentBuildNumber = Integer.parseInt(fixEmptyAndTrim(line));
+                } catch (NumberFormatException e) {
+                    // perhaps a corrupted line. ignore
                 }
             }
         }
 
-        return parentBuildNumber;
+        CloneWorkspaceParentAction a = new CloneWorkspaceParentAction(null, parentBuildNumber);
+        build.addAction(a);
+        build.save();
+        return a;
     }
 
     @Override
@@ -319,11 +565,64 @@ public class CloneWorkspaceSCM extends SCM {
 
     @Extension
     public static class DescriptorImpl extends SCMDescriptor<CloneWorkspaceSCM> {
+        /**
+         * How many megabytes of snapshot archives each agent can keep for later restores. 0 disables the cache.
+         */
+        private long agentCacheSize;
+
+        /**
+         * How many threads write the files of a restore on the node. 0 or 1 means a single one.
+         */
+        private int restoreThreads;
+
+        /**
+         * Whether unpacked snapshots are restored with hard links when they can't be with reflinks, rather than copied.
+         */
+        private boolean hardLinkUnpacked;
+
         public DescriptorImpl() {
             super(CloneWorkspaceSCM.class, null);
             load();
         }
 
+        public static DescriptorImpl get() {
+            return Jenkins.get().getDescriptorByType(DescriptorImpl.class);
+        }
+
+        public int getRestoreThreads() {
+            return restoreThreads;
+        }
+
+        @DataBoundSetter
+        public void setRestoreThreads(int restoreThreads) {
+            this.restoreThreads = Math.max(0, restoreThreads);
+        }
+
+        public boolean isHardLinkUnpacked() {
+            return hardLinkUnpacked;
+        }
+
+        @DataBoundSetter
+        public void setHardLinkUnpacked(boolean hardLinkUnpacked) {
+            this.hardLinkUnpacked = hardLinkUnpacked;
+        }
+
+        public long getAgentCacheSize() {
+            return agentCacheSize;
+        }
+
+        @DataBoundSetter
+        public void setAgentCacheSize(long agentCacheSize) {
+            this.agentCacheSize = Math.max(0, agentCacheSize);
+        }
+
+        @Override
+        public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
+            req.bindJSON(this, json);
+            save();
+            return true;
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.CloneWorkspaceSCM_DisplayName();
@@ -336,23 +635,67 @@ public class CloneWorkspaceSCM extends SCM {
         }
 
         public List<String> getEligibleParents() {
-            List<String> parentNames = new ArrayList<String>();
-            
-            for (AbstractProject p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
-                if (p.getPublishersList().get(CloneWorkspacePublisher.class) != null) {
-                    if (p instanceof MatrixProject mp) {
-                        for (MatrixConfiguration configuration : mp.getActiveConfigurations()) {
-                            parentNames.add(configuration.getFullName());
-                        }
-                    } else {
-                        parentNames.add(p.getFullName());
-                    }
+            return ProjectIndex.get().getEligibleParents(null);
+        }
+
+        public AutoCompletionCandidates doAutoCompleteParentJobName(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            for (String name : ProjectIndex.get().getEligibleParents(value)) {
+                if (candidates.getValues().size() >= AUTO_COMPLETION_LIMIT) {
+                    break;
                 }
+                candidates.add(name);
             }
-            
-            return parentNames;
+            return candidates;
+        }
+
+        /**
+         * Lists the eligible parents page by page, as JSON.
+         *
+         * @param item
+         *      Project being configured, which the current user must be allowed to configure;
+         *      null outside of any project, where reading Jenkins is enough.
+         * @param q
+         *      Only list the names containing this.
+         * @param start
+         *      Index of the first name to list.
+         * @param count
+         *      How many names to list at most, 0 for all of them.
+         */
+        public HttpResponse doEligibleParents(@AncestorInPath Item item, @QueryParameter String q, @QueryParameter int start, @QueryParameter int count) {
+            checkConfigurePermission(item);
+            List<String> parents = ProjectIndex.get().getEligibleParents(q);
+            int from = Math.min(Math.max(0, start), parents.size());
+            int to = count > 0 ? Math.min(parents.size(), from + count) : parents.size();
+            JSONObject page = new JSONObject();
+            page.put("total", parents.size());
+            page.put("parents", JSONArray.fromObject(parents.subList(from, to)));
+            return HttpResponses.okJSON(page);
         }
 
+        @RequirePOST
+        public FormValidation doCheckParentJobName(@AncestorInPath Item item, @QueryParameter String value) {
+            checkConfigurePermission(item);
+            String name = fixEmptyAndTrim(value);
+            if (name == null) {
+                return FormValidation.error(Messages.CloneWorkspaceSCM_NoParent());
+            }
+            if (name.contains("$") || ProjectIndex.get().getEligibleParents(null).contains(name)) {
+                return FormValidation.ok(); // parameters are only known at build time
+            }
+            return FormValidation.warning(Messages.CloneWorkspaceSCM_NotEligible(name));
+        }
+
+        private static void checkConfigurePermission(Item item) {
+            if (item != null) {
+                item.checkPermission(Item.CONFIGURE);
+            } else {
+                Jenkins.get().checkPermission(Jenkins.READ);
+            }
+        }
+
+        private static final int AUTO_COMPLETION_LIMIT = 20;
+
     }
 
     public final class CloneWorkspaceSCMRevisionState extends SCMRevisionState implements Serializable {
@@ -394,6 +737,103 @@ public class CloneWorkspaceSCM extends SCM {
         }
     }
 
+    /**
+     * The snapshot this would restore if it was built now, if it's still being archived in the background.
+     *
+     * @return null if it isn't, or it can't be known before the build starts.
+     */
+    PendingSnapshot getPendingSnapshot() {
+        if (parentJobName == null || parentJobName.contains("$")) {
+            return null; // depends on build parameters
+        }
+        try {
+            WorkspaceSnapshot s = resolve(parentJobName).snapshot;
+            return s instanceof PendingSnapshot && ((PendingSnapshot) s).getState() == PendingSnapshot.State.PENDING
+                ? (PendingSnapshot) s
+                : null;
+        } catch (ResolvedFailedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps children in the queue while the snapshot they'd restore is being archived in the background,
+     * rather than having them wait for it on an executor.
+     */
+    @Extension
+    public static final class PendingSnapshotDispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            if (!(item.task instanceof AbstractProject) || !(((AbstractProject<?,?>) item.task).getScm() instanceof CloneWorkspaceSCM)) {
+                return null;
+            }
+            CloneWorkspaceSCM scm = (CloneWorkspaceSCM) ((AbstractProject<?,?>) item.task).getScm();
+            if (scm.getPendingSnapshot() == null) {
+                return null;
+            }
+            return CauseOfBlockage.fromMessage(Messages._CloneWorkspaceSCM_WaitingForSnapshot(scm.parentJobName));
+        }
+    }
+
+    /**
+     * Schedules the children that asked for it when their parent completes a build with a snapshot they can use.
+     */
+    @Extension
+    public static final class SnapshotTrigger extends RunListener<AbstractBuild<?,?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, @NonNull TaskListener listener) {
+            Result result = build.getResult();
+            if (result == null || build.getAction(WorkspaceSnapshot.class) == null) {
+                return;
+            }
+            for (AbstractProject<?,?> child : ProjectIndex.get().getChildren(build.getProject().getFullName())) {
+                CloneWorkspaceSCM scm = (CloneWorkspaceSCM) child.getScm();
+                if (scm.isTriggerOnSnapshot()
+                        && result.isBetterOrEqualTo(CloneWorkspaceUtil.getResultForCriteria(scm.criteria))
+                        && child.isBuildable()) {
+                    listener.getLogger().println(Messages.CloneWorkspaceSCM_Triggering(child.getFullDisplayName()));
+                    child.scheduleBuild2(child.getQuietPeriod(), new Cause.UpstreamCause((Run<?,?>) build));
+                }
+            }
+        }
+    }
+
+    /**
+     * Change log parser of a parent project, along with the SCM it was created by: reconfiguring the parent project
+     * replaces its SCM, and with it the parser.
+     */
+    private static final class CachedParser {
+        private final SCM scm;
+        private final ChangeLogParser parser;
+
+        CachedParser(SCM scm, ChangeLogParser parser) {
+            this.scm = scm;
+            this.parser = parser;
+        }
+    }
+
+    /**
+     * Change log parsers of the parent projects, by full name. Only the latest SCM of each project is held on to,
+     * even when the parser refers to it.
+     */
+    private static final Map<String,CachedParser> CHANGE_LOG_PARSERS = new HashMap<String,CachedParser>();
+
+    /**
+     * Drops the cached change log parsers of the given item, and everything in it, once it's gone.
+     */
+    static void forgetChangeLogParsers(String fullName) {
+        synchronized (CHANGE_LOG_PARSERS) {
+            CHANGE_LOG_PARSERS.keySet().removeIf(name -> name.equals(fullName) || name.startsWith(fullName + '/'));
+        }
+    }
+
+    /**
+     * How long a build that started anyway waits, in milliseconds, for a snapshot being archived in the background
+     * before falling back to the previous one. Children are normally kept in the queue until the snapshot is archived,
+     * so this only happens when the parent archived a new one in between.
+     */
+    static long PENDING_SNAPSHOT_TIMEOUT = SystemProperties.getLong(CloneWorkspaceSCM.class.getName() + ".pendingSnapshotTimeout", TimeUnit.MINUTES.toMillis(5));
+
    private static final Logger LOGGER = Logger.getLogger(CloneWorkspaceSCM.class.getName());
 
 }
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.WorkspaceSnapshot;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * {@link WorkspaceSnapshot} archived by {@link CloneWorkspacePublisher}, which knows what it contains
+ * and can restore only part of it.
+ */
+public abstract class CloneWorkspaceSnapshot extends WorkspaceSnapshot {
+
+    /**
+     * Lists the contents of this snapshot.
+     *
+     * @return null if this snapshot was archived before manifests were recorded.
+     */
+    public abstract SnapshotManifest getManifest(AbstractBuild<?,?> owner) throws IOException;
+
+    /**
+     * Restores the entries of this snapshot accepted by the filter into the given directory,
+     * overwriting whatever is there with the same name.
+     *
+     * @param filter
+     *      Null to restore everything.
+     */
+    public abstract void restoreTo(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException;
+
+    @Override
+    public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, TaskListener listener) throws IOException, InterruptedException {
+        restoreTo(owner, dst, null, listener);
+    }
+
+    /**
+     * Same as {@link #restoreTo(AbstractBuild, FilePath, Filter, TaskListener)}, telling how each stage of the restore went.
+     *
+     * @return null if this kind of snapshot doesn't tell.
+     */
+    RestorePipeline.Stats restore(AbstractBuild<?,?> owner, FilePath dst, Filter filter, TaskListener listener) throws IOException, InterruptedException {
+        restoreTo(owner, dst, filter, listener);
+        return null;
+    }
+
+    /**
+     * Selects the entries of a snapshot to restore, by their workspace-relative path.
+     * Evaluated on the node being restored to, so it needs to be serializable.
+     */
+    public interface Filter extends Serializable {
+        boolean accept(String path);
+    }
+
+    /**
+     * Filter accepting exactly the given paths.
+     */
+    public static Filter only(Set<String> paths) {
+        return new PathSetFilter(new HashSet<String>(paths));
+    }
+
+    /**
+     * Filter accepting the paths matching any of the include patterns and none of the exclude ones.
+     *
+     * @param includes
+     *      Comma-separated Ant-style patterns, or null to include everything.
+     * @param excludes
+     *      Comma-separated Ant-style patterns, or null to exclude nothing.
+     */
+    public static Filter glob(String includes, String excludes) {
+        return new GlobFilter(patterns(includes), patterns(excludes));
+    }
+
+    private static String[] patterns(String globs) {
+        List<String> patterns = new ArrayList<String>();
+        for (String p : Util.tokenize(Util.fixNull(globs), ",")) {
+            p = p.trim().replace('\\', '/');
+            if (p.endsWith("/")) {
+                p += "**"; // same as Ant
+            }
+            if (!p.isEmpty()) {
+                patterns.add(p);
+            }
+        }
+        return patterns.toArray(new String[0]);
+    }
+
+    private static final class GlobFilter implements Filter {
+        private final String[] includes;
+        private final String[] excludes;
+
+        GlobFilter(String[] includes, String[] excludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+
+        public boolean accept(String path) {
+            return (includes.length == 0 || matchesAny(includes, path)) && !matchesAny(excludes, path);
+        }
+
+        private static boolean matchesAny(String[] patterns, String path) {
+            for (String p : patterns) {
+                if (SelectorUtils.matchPath(p, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class PathSetFilter implements Filter {
+        private final HashSet<String> paths;
+
+        PathSetFilter(HashSet<String> paths) {
+            this.paths = paths;
+        }
+
+        public boolean accept(String path) {
+            return paths.contains(path);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -23,10 +23,15 @@
  */
 package hudson.plugins.cloneworkspace;
 
+import hudson.FilePath;
 import hudson.WorkspaceSnapshot;
 import hudson.model.AbstractProject;
 import hudson.model.AbstractBuild;
 import hudson.model.Result;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
 
 /**
  * Utility class for {@link CloneWorkspaceSCM} and {@link CloneWorkspacePublisher}.
@@ -49,8 +54,11 @@ public class CloneWorkspaceUtil {
         return criteriaResult;
     }
 
+    /**
+     * Looked up in the {@link SnapshotIndex}, rather than by walking the build history.
+     */
     public static AbstractBuild<?,?> getMostRecentBuildForCriteria(AbstractProject<?,?> project, String criteria) {
-        return getMostRecentBuildForCriteria(project.getLastBuild(), getResultForCriteria(criteria));
+        return SnapshotIndex.get().getMostRecentBuild(project, getResultForCriteria(criteria), false);
     }
     
     public static AbstractBuild<?,?> getMostRecentBuildForCriteria(AbstractBuild<?,?> baseBuild, String criteria) {
@@ -77,8 +85,11 @@ public class CloneWorkspaceUtil {
         return getMostRecentBuildForCriteriaWithSnapshot(baseBuild, getResultForCriteria(criteria));
     }
 
+    /**
+     * Looked up in the {@link SnapshotIndex}, rather than by walking the build history.
+     */
     public static AbstractBuild<?,?> getMostRecentBuildForCriteriaWithSnapshot(AbstractProject<?,?> project, String criteria) {
-        return getMostRecentBuildForCriteriaWithSnapshot(project.getLastBuild(), getResultForCriteria(criteria));
+        return SnapshotIndex.get().getMostRecentBuild(project, getResultForCriteria(criteria), true);
     }
 
     public static AbstractBuild<?,?> getMostRecentBuildForCriteriaWithSnapshot(AbstractBuild<?,?> baseBuild, Result criteriaResult) {
@@ -97,10 +108,52 @@ public class CloneWorkspaceUtil {
         }
     }
 
+    /**
+     * Name of the file listing the contents of a "TAR" or "ZIP" snapshot, next to the archive itself.
+     */
+    public static final String MANIFEST_FILE_NAME = "workspace.manifest";
+
+    /**
+     * Name of the file telling where each entry of a "TAR" snapshot is in the archive, next to the archive itself.
+     */
+    public static final String INDEX_FILE_NAME = "workspace.index";
+
+    /**
+     * Name of the directory holding the {@link NamedSnapshot}s of a build, each in a directory of its own, in the build directory.
+     */
+    public static final String NAMED_SNAPSHOTS_DIR_NAME = "snapshots";
+
+    /**
+     * Directory holding the archive of a snapshot.
+     *
+     * @param name
+     *      Name of the {@link NamedSnapshot}, or null for the main snapshot, which is right in the build directory.
+     */
+    public static File getSnapshotDir(File buildDir, String name) {
+        return name != null ? new File(new File(buildDir, NAMED_SNAPSHOTS_DIR_NAME), name) : buildDir;
+    }
+
+    /**
+     * Waits until everything written to local streams by remote calls on the channel of the given file has been delivered.
+     * {@link hudson.remoting.RemoteOutputStream}s are written to asynchronously.
+     */
+    static void syncIO(FilePath f) throws InterruptedException {
+        VirtualChannel channel = f.getChannel();
+        if (channel instanceof Channel) {
+            ((Channel) channel).syncLocalIO();
+        }
+    }
+
     public static String getFileNameForMethod(String method)
     {
         if ("ZIP".equals(method)) {
             return "workspace.zip";
+        } else if ("TARZSTD".equals(method)) {
+            return "workspace.tar.zst";
+        } else if ("TARLZ4".equals(method)) {
+            return "workspace.tar.lz4";
+        } else if ("UNPACKED".equals(method)) {
+            return "workspace";
         } else {
             return "workspace.tar.gz";
         }
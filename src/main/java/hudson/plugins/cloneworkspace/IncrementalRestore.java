@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.WorkspaceSnapshot;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Brings a workspace in line with a snapshot by only writing the files that differ from what's already there,
+ * and deleting the ones that aren't in the snapshot.
+ *
+ * <p>
+ * After each restore, the manifest of what was restored is saved next to the workspace, along with the timestamps
+ * the files ended up with. The next restore compares it with the new snapshot's manifest, and with the files on disk
+ * to notice the ones the build modified. Files that look modified, but still match the checksum the manifest has for
+ * them, are kept as they are. If that state is missing or unreadable, files are only kept if they match their checksum,
+ * and if the manifest has no checksums either, or the snapshot has no manifest, the workspace is wiped and fully
+ * restored like before.
+ */
+final class IncrementalRestore {
+
+    private static final String STATE_FILE = "clone-workspace.state";
+    private static final int MAGIC = 0x43575354; // "CWST"
+    private static final int VERSION = 1;
+
+    private IncrementalRestore() {
+    }
+
+    /**
+     * @param filter
+     *      Entries of the snapshot to restore, or null for all of them. Anything else gets deleted from the workspace.
+     * @return how each stage of the restore went, or null if the snapshot doesn't tell.
+     */
+    static RestorePipeline.Stats restore(AbstractBuild<?,?> parent, WorkspaceSnapshot snapshot, FilePath workspace, CloneWorkspaceSnapshot.Filter filter, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        SnapshotManifest manifest = null;
+        if (snapshot instanceof CloneWorkspaceSnapshot) {
+            manifest = ((CloneWorkspaceSnapshot) snapshot).getManifest(parent);
+        }
+        if (manifest != null && filter != null) {
+            manifest = manifest.filter(filter);
+        }
+        FilePath tmp = WorkspaceList.tempDir(workspace);
+        FilePath state = tmp != null ? tmp.child(STATE_FILE) : null;
+
+        RestorePipeline.Stats stats = null;
+        Plan plan = null;
+        if (manifest != null && state != null) {
+            plan = workspace.act(new Prepare(manifest, state.getRemote()));
+        }
+
+        if (plan == null) {
+            listener.getLogger().println(Messages.IncrementalRestore_FullRestore());
+            if (state != null) {
+                state.delete();
+            }
+            workspace.deleteContents();
+            if (snapshot instanceof CloneWorkspaceSnapshot) {
+                stats = ((CloneWorkspaceSnapshot) snapshot).restore(parent, workspace, filter, listener);
+            } else {
+                snapshot.restoreTo(parent, workspace, listener);
+            }
+        } else {
+            listener.getLogger().println(Messages.IncrementalRestore_Summary(plan.toWrite.size(), plan.unchanged, plan.deleted));
+            if (!plan.toWrite.isEmpty()) {
+                stats = ((CloneWorkspaceSnapshot) snapshot).restore(parent, workspace, CloneWorkspaceSnapshot.only(plan.toWrite), listener);
+            } else {
+                // nothing written, but comparing the workspace against the manifest still took time
+                stats = new RestorePipeline.Stats();
+                stats.elapsedNanos = System.nanoTime() - start;
+            }
+        }
+
+        if (manifest != null && state != null) {
+            tmp.mkdirs();
+            workspace.act(new Record(manifest, state.getRemote()));
+        }
+        return stats;
+    }
+
+    /**
+     * Tells whether a file restored from an earlier snapshot still holds what the new snapshot wants there.
+     */
+    private static boolean isUpToDate(SnapshotManifest.Entry wanted, SnapshotManifest.Entry restored, long restoredModified, File f) throws IOException {
+        if (restored == null || restored.getType() != wanted.getType()) {
+            return false;
+        }
+        switch (wanted.getType()) {
+        case DIRECTORY:
+            return f.isDirectory();
+        case SYMLINK:
+            return Files.isSymbolicLink(f.toPath())
+                && wanted.getLinkTarget().equals(restored.getLinkTarget())
+                && wanted.getLinkTarget().equals(Files.readSymbolicLink(f.toPath()).toString());
+        default:
+            boolean sameContents;
+            if (wanted.getDigest() != null && restored.getDigest() != null) {
+                sameContents = wanted.getDigest().equals(restored.getDigest());
+            } else if (wanted.getChecksum() != -1 && restored.getChecksum() != -1) {
+                sameContents = wanted.getChecksum() == restored.getChecksum();
+            } else {
+                // neither snapshot says what the contents are
+                sameContents = wanted.getLastModified() == restored.getLastModified();
+            }
+            return sameContents
+                && wanted.getSize() == restored.getSize()
+                && wanted.getMode() == restored.getMode()
+                && Files.isRegularFile(f.toPath(), LinkOption.NOFOLLOW_LINKS)
+                && f.length() == restored.getSize()
+                && f.lastModified() == restoredModified;
+        }
+    }
+
+    /**
+     * Tells whether a file already holds the contents the snapshot wants there, going by its checksum,
+     * and gives it the timestamp the snapshot has for it if so.
+     */
+    private static boolean matchesChecksum(SnapshotManifest.Entry wanted, File f) throws IOException {
+        if (!wanted.isFile() || wanted.getChecksum() == -1
+                || !Files.isRegularFile(f.toPath(), LinkOption.NOFOLLOW_LINKS) || f.length() != wanted.getSize()) {
+            return false;
+        }
+        int mode = IOUtils.mode(f);
+        if (wanted.getMode() != -1 && mode != -1 && (mode & 07777) != (wanted.getMode() & 07777)) {
+            return false;
+        }
+        if (SnapshotManifest.checksum(f) != wanted.getChecksum()) {
+            return false;
+        }
+        return f.setLastModified(wanted.getLastModified());
+    }
+
+    private static boolean hasChecksums(SnapshotManifest manifest) {
+        for (SnapshotManifest.Entry e : manifest) {
+            if (e.isFile() && e.getChecksum() != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What needs to be done to bring the workspace in line with the snapshot.
+     */
+    private static final class Plan implements Serializable {
+        private final HashSet<String> toWrite = new HashSet<String>();
+        private int unchanged;
+        private int deleted;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Compares the workspace with the previous state and the new manifest, deletes whatever has no business
+     * being there, and tells which entries need to be restored. Returns null if the previous state is unknown
+     * and there are no checksums to go by instead.
+     */
+    private static final class Prepare extends MasterToSlaveFileCallable<Plan> {
+        private final SnapshotManifest manifest;
+        private final String stateFile;
+
+        Prepare(SnapshotManifest manifest, String stateFile) {
+            this.manifest = manifest;
+            this.stateFile = stateFile;
+        }
+
+        public Plan invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!dir.isDirectory()) {
+                return null;
+            }
+            File state = new File(stateFile);
+            SnapshotManifest restored = null;
+            long[] restoredModified = null;
+            if (state.isFile()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(state))))) {
+                    if (in.readInt() == MAGIC && in.readInt() <= VERSION) {
+                        SnapshotManifest m = SnapshotManifest.readFrom(in, stateFile);
+                        long[] modified = new long[m.size()];
+                        for (int i = 0; i < modified.length; i++) {
+                            modified[i] = in.readLong();
+                        }
+                        restored = m;
+                        restoredModified = modified;
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Unreadable workspace state " + stateFile, e);
+                } finally {
+                    // whatever happens from here on, the state will only be valid again once the restore is complete
+                    Files.deleteIfExists(state.toPath());
+                }
+            }
+            if (restored == null) {
+                if (!hasChecksums(manifest)) {
+                    return null;
+                }
+                // nothing is known about the workspace, but the checksums tell which files can stay
+                restored = new SnapshotManifest(Collections.<SnapshotManifest.Entry>emptyList());
+                restoredModified = new long[0];
+            }
+
+            final Plan plan = new Plan();
+            for (int i = 0; i < restored.size(); i++) {
+                SnapshotManifest.Entry r = restored.getEntries().get(i);
+                SnapshotManifest.Entry wanted = manifest.get(r.getPath());
+                if (wanted == null) {
+                    continue;
+                }
+                File f = new File(dir, wanted.getPath());
+                if (isUpToDate(wanted, r, restoredModified[i], f) || matchesChecksum(wanted, f)) {
+                    plan.unchanged++;
+                } else {
+                    plan.toWrite.add(wanted.getPath());
+                }
+            }
+            for (SnapshotManifest.Entry wanted : manifest) {
+                if (restored.get(wanted.getPath()) == null) {
+                    if (matchesChecksum(wanted, new File(dir, wanted.getPath()))) {
+                        plan.unchanged++;
+                    } else {
+                        plan.toWrite.add(wanted.getPath());
+                    }
+                }
+            }
+
+            // Delete everything that isn't in the snapshot, and whatever is in the way of what is.
+            final Set<String> directories = new HashSet<String>();
+            for (SnapshotManifest.Entry e : manifest) {
+                String p = e.getPath();
+                if (e.getType() == SnapshotManifest.Entry.Type.DIRECTORY) {
+                    directories.add(p);
+                }
+                for (int slash = p.lastIndexOf('/'); slash > 0; slash = p.lastIndexOf('/', slash - 1)) {
+                    directories.add(p.substring(0, slash));
+                }
+            }
+            final Path root = dir.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                    if (d.equals(root)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String path = relativize(d);
+                    if (directories.contains(path)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Util.deleteRecursive(d.toFile());
+                    plan.deleted++;
+                    if (manifest.get(path) != null) {
+                        plan.toWrite.add(path);
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                    String path = relativize(f);
+                    SnapshotManifest.Entry wanted = manifest.get(path);
+                    if (wanted == null || wanted.getType() == SnapshotManifest.Entry.Type.DIRECTORY) {
+                        Files.delete(f);
+                        plan.deleted++;
+                        if (wanted != null) {
+                            plan.toWrite.add(path);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private String relativize(Path p) {
+                    return root.relativize(p).toString().replace('\\', '/');
+                }
+            });
+            return plan;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Saves what was just restored, and the timestamps the files ended up with.
+     */
+    private static final class Record extends MasterToSlaveFileCallable<Void> {
+        private final SnapshotManifest manifest;
+        private final String stateFile;
+
+        Record(SnapshotManifest manifest, String stateFile) {
+            this.manifest = manifest;
+            this.stateFile = stateFile;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            File state = new File(stateFile);
+            File tmp = new File(stateFile + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                manifest.writeTo(out);
+                for (SnapshotManifest.Entry e : manifest) {
+                    File f = new File(dir, e.getPath());
+                    out.writeLong(f.exists() ? f.lastModified() : -1);
+                }
+            }
+            Files.move(tmp.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IncrementalRestore.class.getName());
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Adds up the {@link SnapshotMetricsAction}s of the snapshots of a parent project, and of the restores from them,
+ * since Jenkins started. Exported through the remote API at {@code job/<parent>/cloneWorkspaceMetrics/api/}.
+ */
+@ExportedBean
+public class JobSnapshotMetrics implements Action {
+
+    private static final ConcurrentMap<String,JobSnapshotMetrics> METRICS = new ConcurrentHashMap<String,JobSnapshotMetrics>();
+
+    private long snapshots;
+    private long snapshotRawBytes;
+    private long snapshotStoredBytes;
+    private long restores;
+    private long restoredBytes;
+    private long restoreTransferredBytes;
+    private final Histogram snapshotMillis = new Histogram();
+    private final Histogram restoreMillis = new Histogram();
+
+    static void record(SnapshotMetricsAction metrics) {
+        METRICS.computeIfAbsent(metrics.getParentJobName(), k -> new JobSnapshotMetrics()).add(metrics);
+    }
+
+    /**
+     * @return null if the project didn't take or hand over any snapshot since Jenkins started.
+     */
+    public static JobSnapshotMetrics get(String parentJobName) {
+        return METRICS.get(parentJobName);
+    }
+
+    private synchronized void add(SnapshotMetricsAction m) {
+        if (m.getKind() == SnapshotMetricsAction.Kind.SNAPSHOT) {
+            snapshots++;
+            snapshotRawBytes += Math.max(0, m.getRawBytes());
+            snapshotStoredBytes += Math.max(0, m.getStoredBytes());
+            snapshotMillis.add(m.getTotalMillis());
+        } else {
+            restores++;
+            restoredBytes += Math.max(0, m.getRawBytes());
+            restoreTransferredBytes += Math.max(0, m.getStoredBytes());
+            restoreMillis.add(m.getTotalMillis());
+        }
+    }
+
+    @Exported
+    public synchronized long getSnapshots() {
+        return snapshots;
+    }
+
+    @Exported
+    public synchronized long getSnapshotRawBytes() {
+        return snapshotRawBytes;
+    }
+
+    @Exported
+    public synchronized long getSnapshotStoredBytes() {
+        return snapshotStoredBytes;
+    }
+
+    @Exported
+    public synchronized long getRestores() {
+        return restores;
+    }
+
+    @Exported
+    public synchronized long getRestoredBytes() {
+        return restoredBytes;
+    }
+
+    /**
+     * Size of the archives read by the restores, as far as they tell.
+     */
+    @Exported
+    public synchronized long getRestoreTransferredBytes() {
+        return restoreTransferredBytes;
+    }
+
+    @Exported
+    public synchronized Histogram getSnapshotMillis() {
+        return snapshotMillis.copy();
+    }
+
+    @Exported
+    public synchronized Histogram getRestoreMillis() {
+        return restoreMillis.copy();
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.JobSnapshotMetrics_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "cloneWorkspaceMetrics";
+    }
+
+    /**
+     * Distribution of durations, in milliseconds.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Histogram {
+        private static final long[] BOUNDS = {1000, 5000, 15000, 60000, 300000, 900000};
+
+        private final long[] counts;
+        private long count;
+        private long sum;
+
+        Histogram() {
+            counts = new long[BOUNDS.length + 1];
+        }
+
+        private Histogram(Histogram h) {
+            counts = h.counts.clone();
+            count = h.count;
+            sum = h.sum;
+        }
+
+        Histogram copy() {
+            return new Histogram(this);
+        }
+
+        void add(long millis) {
+            if (millis < 0) {
+                return;
+            }
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            sum += millis;
+        }
+
+        /**
+         * Upper bounds of the buckets, all but the last one, which holds whatever is longer.
+         */
+        @Exported
+        public long[] getBounds() {
+            return BOUNDS.clone();
+        }
+
+        @Exported
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        @Exported
+        public long getCount() {
+            return count;
+        }
+
+        @Exported
+        public long getSum() {
+            return sum;
+        }
+    }
+
+    @Extension
+    public static final class Factory extends TransientActionFactory<AbstractProject> {
+        @Override
+        public Class<AbstractProject> type() {
+            return AbstractProject.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull AbstractProject target) {
+            JobSnapshotMetrics metrics = get(target.getFullName());
+            return metrics != null ? Collections.singleton(metrics) : Collections.<Action>emptySet();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.scm.ChangeLogParser;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.RepositoryBrowser;
+import jenkins.model.Jenkins;
+import jenkins.util.xml.XMLUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * Changes of a range of parent builds, for children that only record a reference to that range in their
+ * {@code changelog.xml} rather than a copy of the parent's changelog.
+ *
+ * <p>
+ * The range goes from the parent build the previous child build was cloned from (excluded) to the one this
+ * child build was cloned from (included), so the parent builds the child skipped contribute their changes too.
+ * The change sets of the parent builds are only loaded as the entries are iterated over, newest build first.
+ */
+public final class MergedChangeLogSet extends ChangeLogSet<ChangeLogSet.Entry> {
+
+    private static final String ELEMENT = "cloneWorkspaceChangeLog";
+
+    private final String parentJobName;
+    private final int from;
+    private final int to;
+
+    private transient List<ChangeLogSet<? extends Entry>> changeSets;
+
+    MergedChangeLogSet(Run<?,?> run, String parentJobName, int from, int to) {
+        super(run, null);
+        this.parentJobName = parentJobName;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Writes a reference to the changes of the parent builds after {@code from}, up to {@code to} included.
+     */
+    static void write(File changelogFile, String parentJobName, int from, int to) throws IOException {
+        try (Writer w = Files.newBufferedWriter(changelogFile.toPath(), StandardCharsets.UTF_8)) {
+            w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+            w.write("<" + ELEMENT + " parent=\"" + escape(parentJobName) + "\" from=\"" + from + "\" to=\"" + to + "\"/>\n");
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Tells whether the given changelog is a reference written by {@link #write}, rather than a changelog of the parent's SCM.
+     */
+    static boolean isReference(File changelogFile) throws IOException {
+        if (!changelogFile.isFile()) {
+            return false;
+        }
+        byte[] head;
+        try (InputStream in = Files.newInputStream(changelogFile.toPath())) {
+            head = in.readNBytes(256);
+        }
+        return new String(head, StandardCharsets.UTF_8).contains("<" + ELEMENT + " ");
+    }
+
+    static MergedChangeLogSet read(Run<?,?> run, File changelogFile) throws IOException {
+        Element e;
+        try (Reader r = Files.newBufferedReader(changelogFile.toPath(), StandardCharsets.UTF_8)) {
+            e = XMLUtils.parse(r).getDocumentElement();
+        } catch (SAXException x) {
+            throw new IOException("Failed to parse " + changelogFile, x);
+        }
+        try {
+            return new MergedChangeLogSet(run, e.getAttribute("parent"),
+                Integer.parseInt(e.getAttribute("from")), Integer.parseInt(e.getAttribute("to")));
+        } catch (NumberFormatException x) {
+            throw new IOException("Failed to parse " + changelogFile, x);
+        }
+    }
+
+    public String getParentJobName() {
+        return parentJobName;
+    }
+
+    /**
+     * Number of the last parent build whose changes aren't part of this set.
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * Number of the last parent build whose changes are part of this set.
+     */
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * The change sets of the parent builds in the range that are still around, newest first.
+     */
+    public synchronized List<ChangeLogSet<? extends Entry>> getChangeSets() {
+        if (changeSets == null) {
+            List<ChangeLogSet<? extends Entry>> sets = new ArrayList<ChangeLogSet<? extends Entry>>();
+            for (Iterator<ChangeLogSet<? extends Entry>> it = new ChangeSetIterator(); it.hasNext(); ) {
+                sets.add(it.next());
+            }
+            changeSets = Collections.unmodifiableList(sets);
+        }
+        return changeSets;
+    }
+
+    @Override
+    public boolean isEmptySet() {
+        return !iterator().hasNext();
+    }
+
+    @Override
+    public Object[] getItems() {
+        List<Entry> items = new ArrayList<Entry>();
+        for (Entry e : this) {
+            items.add(e);
+        }
+        return items.toArray();
+    }
+
+    @Override
+    public String getKind() {
+        Iterator<ChangeLogSet<? extends Entry>> it = new ChangeSetIterator();
+        return it.hasNext() ? it.next().getKind() : null;
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        synchronized (this) {
+            if (changeSets != null) {
+                return flatten(changeSets.iterator());
+            }
+        }
+        return flatten(new ChangeSetIterator());
+    }
+
+    private static Iterator<Entry> flatten(final Iterator<ChangeLogSet<? extends Entry>> sets) {
+        return new Iterator<Entry>() {
+            private Iterator<? extends Entry> current = Collections.emptyIterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (!sets.hasNext()) {
+                        return false;
+                    }
+                    current = sets.next().iterator();
+                }
+                return true;
+            }
+
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Loads the change sets of the parent builds one at a time, skipping the builds that were deleted.
+     */
+    private final class ChangeSetIterator implements Iterator<ChangeLogSet<? extends Entry>> {
+        private final Job<?,?> job = Jenkins.get().getItemByFullName(parentJobName, Job.class);
+        private int number = to;
+        private ChangeLogSet<? extends Entry> next;
+
+        public boolean hasNext() {
+            while (next == null && job != null && number > from) {
+                Run<?,?> b = job.getBuildByNumber(number--);
+                if (b instanceof AbstractBuild) {
+                    next = ((AbstractBuild<?,?>) b).getChangeSet();
+                }
+            }
+            return next != null;
+        }
+
+        public ChangeLogSet<? extends Entry> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ChangeLogSet<? extends Entry> set = next;
+            next = null;
+            return set;
+        }
+    }
+
+    /**
+     * Reads the changelog of a child build, whether it's a reference to the changes of the parent builds,
+     * or a copy of the parent's changelog, which is handed over to the parser of the parent's SCM.
+     */
+    static final class Parser extends ChangeLogParser {
+        private final ChangeLogParser parent;
+
+        Parser(ChangeLogParser parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public ChangeLogSet<? extends Entry> parse(Run build, RepositoryBrowser<?> browser, File changelogFile) throws IOException, SAXException {
+            if (isReference(changelogFile)) {
+                return read(build, changelogFile);
+            }
+            return parent.parse(build, browser, changelogFile);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Failure;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An additional snapshot {@link CloneWorkspacePublisher} archives next to the main one, with its own files and archive method,
+ * so that children can restore only the part of the workspace they need.
+ *
+ * <p>
+ * Each is archived in its own directory under {@code snapshots} in the build directory, and recorded in {@link NamedSnapshots}.
+ * It lives and dies with the main snapshot of the build. Since the name is used as a directory name, it's checked like
+ * an item name, and has to be unique among the snapshots of a publisher.
+ */
+public class NamedSnapshot extends AbstractDescribableImpl<NamedSnapshot> {
+    private final String name;
+    private final String workspaceGlob;
+    private final String workspaceExcludeGlob;
+    private final String archiveMethod;
+
+    @DataBoundConstructor
+    public NamedSnapshot(String name, String workspaceGlob, String workspaceExcludeGlob, String archiveMethod) {
+        this.name = Util.fixEmptyAndTrim(name);
+        Jenkins.checkGoodName(this.name);
+        this.workspaceGlob = Util.fixNull(workspaceGlob).trim();
+        this.workspaceExcludeGlob = Util.fixEmptyAndTrim(workspaceExcludeGlob);
+        this.archiveMethod = archiveMethod;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getWorkspaceGlob() {
+        return workspaceGlob;
+    }
+
+    public String getWorkspaceExcludeGlob() {
+        return workspaceExcludeGlob;
+    }
+
+    public String getArchiveMethod() {
+        return archiveMethod;
+    }
+
+    /**
+     * Checks the names of the given snapshots, which may not have gone through the constructor
+     * when they were loaded from a configuration file.
+     *
+     * @throws Failure if a name isn't a valid directory name, or is used more than once.
+     */
+    static void checkNames(List<NamedSnapshot> snapshots) throws Failure {
+        Set<String> names = new HashSet<String>();
+        for (NamedSnapshot ns : snapshots) {
+            Jenkins.checkGoodName(ns.getName());
+            if (!names.add(ns.getName())) {
+                throw new Failure(Messages.NamedSnapshot_Duplicate(ns.getName()));
+            }
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<NamedSnapshot> {
+        @Override
+        public String getDisplayName() {
+            return Messages.NamedSnapshot_DisplayName();
+        }
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            try {
+                Jenkins.checkGoodName(Util.fixEmptyAndTrim(value));
+                return FormValidation.ok();
+            } catch (Failure e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.WorkspaceSnapshot;
+import hudson.model.InvisibleAction;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link NamedSnapshot}s archived by a build, by name.
+ */
+public class NamedSnapshots extends InvisibleAction {
+    private final Map<String,WorkspaceSnapshot> snapshots = new LinkedHashMap<String,WorkspaceSnapshot>();
+
+    /**
+     * @return null if the build has no snapshot with that name.
+     */
+    public synchronized WorkspaceSnapshot get(String name) {
+        return snapshots.get(name);
+    }
+
+    public synchronized Collection<WorkspaceSnapshot> getAll() {
+        return snapshots.values();
+    }
+
+    synchronized void put(String name, WorkspaceSnapshot snapshot) {
+        snapshots.put(name, snapshot);
+    }
+}
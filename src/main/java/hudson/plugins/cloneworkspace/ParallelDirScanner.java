@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Util;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * {@link DirScanner} selecting the same files as {@link DirScanner.Glob}, but walking the directory tree and matching
+ * the patterns on several threads.
+ *
+ * <p>
+ * Each directory is listed by its own fork-join task, which matches its entries and forks the tasks of its subdirectories.
+ * The visitor is fed on the calling thread, by going through the tasks depth-first as they complete, with the entries
+ * of each directory sorted by name. The tasks act as an ordered queue between the walk and the visitor: the walk runs
+ * ahead, the visitor only waits for the directory it's at, and the order the files are visited in doesn't depend
+ * on how the tasks got scheduled.
+ */
+final class ParallelDirScanner extends DirScanner {
+    private final String includes;
+    private final String excludes;
+    private final boolean useDefaultExcludes;
+    private final int threads;
+
+    /**
+     * @param includes
+     *      Comma-separated Ant-style patterns of the files to select.
+     * @param excludes
+     *      Comma-separated Ant-style patterns of the files to leave out, or null.
+     * @param useDefaultExcludes
+     *      Whether to also leave out the files Ant leaves out by default, like version control metadata.
+     * @param threads
+     *      How many threads walk the tree.
+     */
+    ParallelDirScanner(String includes, String excludes, boolean useDefaultExcludes, int threads) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.useDefaultExcludes = useDefaultExcludes;
+        this.threads = threads;
+    }
+
+    @Override
+    public void scan(File dir, FileVisitor visitor) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        List<String> excludePatterns = new ArrayList<String>(patterns(excludes));
+        if (useDefaultExcludes) {
+            for (String p : DirectoryScanner.getDefaultExcludes()) {
+                excludePatterns.add(normalize(p));
+            }
+        }
+        Matcher matcher = new Matcher(patterns(includes), excludePatterns);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            Listing root = pool.submit(new Listing.Task(dir, "", matcher, Collections.<Path>emptyList())).get();
+            visit(root, visitor);
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void visit(Listing listing, FileVisitor visitor) throws IOException {
+        for (Object o : listing.items) {
+            if (o instanceof Listing.Task) {
+                Listing sub;
+                try {
+                    sub = ((Listing.Task) o).join();
+                } catch (CancellationException e) {
+                    throw (IOException) new InterruptedIOException().initCause(e);
+                } catch (RuntimeException e) {
+                    throw unwrap(e.getCause() != null ? e.getCause() : e);
+                }
+                visit(sub, visitor);
+            } else {
+                Match m = (Match) o;
+                scanSingle(m.file, m.relativePath, visitor);
+            }
+        }
+    }
+
+    private static IOException unwrap(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IOException(t);
+    }
+
+    /**
+     * Splits comma-separated patterns, normalized the way Ant does.
+     */
+    private static List<String> patterns(String globs) {
+        List<String> patterns = new ArrayList<String>();
+        for (String p : Util.tokenize(Util.fixNull(globs), ",")) {
+            p = p.trim();
+            if (!p.isEmpty()) {
+                patterns.add(normalize(p));
+            }
+        }
+        return patterns;
+    }
+
+    private static String normalize(String pattern) {
+        String p = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        if (p.endsWith(File.separator)) {
+            p += "**";
+        }
+        return p;
+    }
+
+    private static final class Matcher {
+        private final String[] includes;
+        private final String[] excludes;
+
+        Matcher(List<String> includes, List<String> excludes) {
+            this.includes = includes.toArray(new String[0]);
+            this.excludes = excludes.toArray(new String[0]);
+        }
+
+        boolean isIncluded(String path) {
+            for (String p : includes) {
+                if (SelectorUtils.matchPath(p, path)) {
+                    return !isExcluded(path);
+                }
+            }
+            return false;
+        }
+
+        boolean isExcluded(String path) {
+            for (String p : excludes) {
+                if (SelectorUtils.matchPath(p, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tells whether the directory may contain included files, so that it needs to be walked.
+         */
+        boolean couldHoldIncluded(String dirPath) {
+            for (String p : excludes) {
+                if (p.endsWith(File.separator + "**") && SelectorUtils.matchPath(p.substring(0, p.length() - 3), dirPath)) {
+                    return false; // everything in there is excluded, like Ant we don't even look
+                }
+            }
+            for (String p : includes) {
+                if (SelectorUtils.matchPatternStart(p, dirPath)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Match {
+        final File file;
+        final String relativePath;
+
+        Match(File file, String relativePath) {
+            this.file = file;
+            this.relativePath = relativePath;
+        }
+    }
+
+    /**
+     * The matching files and the subdirectory tasks of a directory, in the order to visit them.
+     */
+    private static final class Listing {
+        final List<Object> items = new ArrayList<Object>();
+
+        static final class Task extends RecursiveTask<Listing> {
+            private final File dir;
+            private final String relativePath;
+            private final Matcher matcher;
+            /**
+             * Real paths of the symlinked directories followed to get here, to stop at loops.
+             */
+            private final List<Path> followed;
+
+            Task(File dir, String relativePath, Matcher matcher, List<Path> followed) {
+                this.dir = dir;
+                this.relativePath = relativePath;
+                this.matcher = matcher;
+                this.followed = followed;
+            }
+
+            @Override
+            protected Listing compute() {
+                Listing listing = new Listing();
+                String[] names = dir.list();
+                if (names == null) {
+                    return listing; // not readable, just like Ant
+                }
+                Arrays.sort(names);
+                for (String name : names) {
+                    File f = new File(dir, name);
+                    String path = relativePath.isEmpty() ? name : relativePath + File.separatorChar + name;
+                    Path p = f.toPath();
+                    if (Files.isDirectory(p)) {
+                        List<Path> chain = followed;
+                        if (Files.isSymbolicLink(p)) {
+                            Path real;
+                            try {
+                                real = p.toRealPath();
+                            } catch (IOException e) {
+                                continue;
+                            }
+                            if (chain.contains(real) || isAncestor(real)) {
+                                continue; // loop
+                            }
+                            chain = new ArrayList<Path>(chain);
+                            chain.add(real);
+                        }
+                        if (matcher.couldHoldIncluded(path)) {
+                            Task t = new Task(f, path, matcher, chain);
+                            t.fork();
+                            listing.items.add(t);
+                        }
+                    } else if (matcher.isIncluded(path)) {
+                        listing.items.add(new Match(f, path));
+                    }
+                }
+                return listing;
+            }
+
+            private boolean isAncestor(Path real) {
+                try {
+                    return dir.toPath().toRealPath().startsWith(real);
+                } catch (IOException e) {
+                    return true;
+                }
+            }
+
+            private static final long serialVersionUID = 1L;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compresses its input on several threads, pigz-style: the input is cut into fixed-size blocks, and each of them
+ * is compressed independently into a complete gzip member. The concatenation of those members is a valid gzip stream,
+ * but it has to be read with a decoder that handles concatenated members, such as commons-compress'
+ * {@code GzipCompressorInputStream} with {@code decompressConcatenated} set. {@link java.util.zip.GZIPInputStream}
+ * silently stops after the first member when the next one doesn't happen to be buffered yet.
+ *
+ * <p>
+ * Blocks are written out in order, and at most a couple of blocks per thread are kept in memory at any time.
+ * Where each of them starts, in the compressed and uncompressed streams, is recorded: since gzip members are independent,
+ * decompression can start at any of them.
+ */
+final class ParallelGZIPOutputStream extends OutputStream {
+
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPending;
+    private final Deque<Block> pending = new ArrayDeque<Block>();
+    private final List<Long> blockOffsets = new ArrayList<Long>();
+    private final List<Long> blockStarts = new ArrayList<Long>();
+
+    private byte[] block;
+    private int count;
+    private long bytesIn;
+    private long bytesOut;
+    private long bytesInWritten;
+    private boolean closed;
+
+    ParallelGZIPOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize) {
+        if (threads < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("threads=" + threads + ", blockSize=" + blockSize);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        this.executor = Executors.newFixedThreadPool(threads,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Clone Workspace gzip compression"));
+    }
+
+    /**
+     * Number of uncompressed bytes written so far.
+     */
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Number of compressed bytes written to the underlying stream so far.
+     */
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Offsets in the compressed stream of the gzip members written so far.
+     */
+    long[] getBlockOffsets() {
+        return toArray(blockOffsets);
+    }
+
+    /**
+     * Offsets in the uncompressed stream of the data compressed into each gzip member written so far.
+     */
+    long[] getBlockStarts() {
+        return toArray(blockStarts);
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] a = new long[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == block.length) {
+            submit();
+        }
+        block[count++] = (byte) b;
+        bytesIn++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == block.length) {
+                submit();
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            bytesIn += n;
+        }
+    }
+
+    /**
+     * Compresses and writes out whatever is buffered. As this ends the current gzip member early,
+     * it hurts the compression ratio when called often.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        submit();
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit();
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submit() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        final byte[] data = block;
+        final int length = count;
+        block = new byte[blockSize];
+        count = 0;
+        pending.add(new Block(length, executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compress(data, length);
+            }
+        })));
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Block block = pending.removeFirst();
+        byte[] compressed;
+        try {
+            compressed = block.data.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("Interrupted while compressing").initCause(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+        out.write(compressed);
+        blockOffsets.add(bytesOut);
+        blockStarts.add(bytesInWritten);
+        bytesOut += compressed.length;
+        bytesInWritten += block.length;
+    }
+
+    private static final class Block {
+        final int length;
+        final Future<byte[]> data;
+
+        Block(int length, Future<byte[]> data) {
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(buf, 64 * 1024)) {
+            gz.write(data, 0, length);
+        }
+        return buf.toByteArray();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.WorkspaceSnapshot;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stands in for the snapshot of a build while {@link CloneWorkspacePublisher} archives it in the background.
+ *
+ * <p>
+ * Once the snapshot is archived, it replaces this action on the build. If archiving fails, this action is just removed.
+ * A build loaded from disk with this action was still being archived when Jenkins stopped, and never will be:
+ * the action is then removed, and what was set aside to be archived deleted.
+ */
+public final class PendingSnapshot extends WorkspaceSnapshot implements RunAction2 {
+
+    public enum State { PENDING, READY, FAILED }
+
+    private final String archiveMethod;
+
+    /**
+     * Name of the node the files to archive were set aside on, empty for the built-in node.
+     */
+    private final String node;
+
+    /**
+     * Where the files to archive were set aside on that node.
+     */
+    private final String staging;
+
+    /**
+     * Null if this was loaded from disk.
+     */
+    private transient CountDownLatch done;
+    private transient volatile WorkspaceSnapshot snapshot;
+
+    PendingSnapshot(String archiveMethod, String node, String staging) {
+        this.archiveMethod = archiveMethod;
+        this.node = node;
+        this.staging = staging;
+        this.done = new CountDownLatch(1);
+    }
+
+    public String getArchiveMethod() {
+        return archiveMethod;
+    }
+
+    public State getState() {
+        if (done != null && done.getCount() > 0) {
+            return State.PENDING;
+        }
+        return snapshot != null ? State.READY : State.FAILED;
+    }
+
+    /**
+     * Waits for the snapshot to be archived.
+     *
+     * @return the archived snapshot, or null if archiving failed or is still going on after the timeout.
+     */
+    public WorkspaceSnapshot await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (done != null) {
+            done.await(timeout, unit);
+        }
+        return snapshot;
+    }
+
+    void complete(WorkspaceSnapshot snapshot) {
+        this.snapshot = snapshot;
+        done.countDown();
+    }
+
+    void fail() {
+        done.countDown();
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+    }
+
+    @Override
+    public void onLoad(final Run<?,?> r) {
+        if (done != null) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(() -> {
+            discard(r);
+            return null;
+        });
+    }
+
+    /**
+     * Gets rid of a snapshot that was still being archived when Jenkins stopped.
+     */
+    private void discard(Run<?,?> r) {
+        try {
+            r.removeAction(this);
+            r.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove the unfinished workspace snapshot of " + r, e);
+        }
+        if (staging == null) {
+            return;
+        }
+        Node n = node == null || node.isEmpty() ? Jenkins.get() : Jenkins.get().getNode(node);
+        FilePath dir = n != null ? n.createPath(staging) : null;
+        if (dir == null) {
+            return; // offline: the next snapshot archived in the background from that workspace deletes it
+        }
+        try {
+            dir.deleteRecursive();
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.FINE, "Failed to delete " + staging + " on " + n.getDisplayName(), e);
+        }
+    }
+
+    @Override
+    public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, TaskListener listener) throws IOException, InterruptedException {
+        WorkspaceSnapshot s = await(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (s == null) {
+            throw new IOException("The workspace snapshot of " + owner + " failed to be archived");
+        }
+        s.restoreTo(owner, dst, listener);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PendingSnapshot.class.getName());
+}
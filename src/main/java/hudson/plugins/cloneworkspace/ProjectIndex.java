@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.scm.SCM;
+import jenkins.model.Jenkins;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the projects using {@link CloneWorkspaceSCM}, so that the project a given instance belongs to
+ * can be found without going through every project of the instance, and of the projects archived with
+ * {@link CloneWorkspacePublisher}, which are the ones a {@link CloneWorkspaceSCM} can use as parent.
+ *
+ * <p>
+ * Projects are indexed when they're loaded, created, copied, reconfigured or saved, and forgotten when they're
+ * renamed, moved or deleted. SCMs are only weakly referenced, and checked against the project on every lookup:
+ * an SCM replaced by a new configuration simply stops being found, and if anything was missed, the projects are
+ * looked through like before.
+ */
+@Extension
+public class ProjectIndex {
+
+    private final Map<CloneWorkspaceSCM,WeakReference<AbstractProject<?,?>>> owners = new WeakHashMap<CloneWorkspaceSCM,WeakReference<AbstractProject<?,?>>>();
+
+    /**
+     * Names of the possible parents, by the full name of the project archived with {@link CloneWorkspacePublisher}:
+     * the project itself, or the active configurations of a matrix project.
+     */
+    private final Map<String,List<String>> parents = new TreeMap<String,List<String>>();
+
+    public static ProjectIndex get() {
+        return ExtensionList.lookupSingleton(ProjectIndex.class);
+    }
+
+    /**
+     * Finds the project the given SCM is configured in.
+     *
+     * @return null if it isn't the SCM of any project.
+     */
+    public AbstractProject<?,?> getOwner(CloneWorkspaceSCM scm) {
+        synchronized (this) {
+            WeakReference<AbstractProject<?,?>> ref = owners.get(scm);
+            AbstractProject<?,?> p = ref != null ? ref.get() : null;
+            if (p != null && p.getScm() == scm) {
+                return p;
+            }
+        }
+        AbstractProject<?,?> owner = null;
+        for (AbstractProject<?,?> p : Jenkins.get().allItems(AbstractProject.class)) {
+            index(p);
+            if (p.getScm() == scm) {
+                owner = p;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Lists the projects using the given project as parent. Children whose parent depends on build parameters
+     * aren't listed, as it can't be known until they're built.
+     */
+    public List<AbstractProject<?,?>> getChildren(String parentFullName) {
+        List<AbstractProject<?,?>> children = new ArrayList<AbstractProject<?,?>>();
+        synchronized (this) {
+            for (Map.Entry<CloneWorkspaceSCM,WeakReference<AbstractProject<?,?>>> e : owners.entrySet()) {
+                AbstractProject<?,?> p = e.getValue().get();
+                if (p != null && p.getScm() == e.getKey() && parentFullName.equals(e.getKey().parentJobName)) {
+                    children.add(p);
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Lists the projects a {@link CloneWorkspaceSCM} can use as parent, that the current user can see.
+     *
+     * @param query
+     *      Only list the names containing this, ignoring case. Null or empty to list them all.
+     */
+    public List<String> getEligibleParents(String query) {
+        List<String> names = new ArrayList<String>();
+        synchronized (this) {
+            for (List<String> l : parents.values()) {
+                names.addAll(l);
+            }
+        }
+        String q = Util.fixEmptyAndTrim(query) != null ? query.trim().toLowerCase(Locale.ENGLISH) : null;
+        Jenkins j = Jenkins.get();
+        List<String> visible = new ArrayList<String>();
+        for (String name : names) {
+            if ((q == null || name.toLowerCase(Locale.ENGLISH).contains(q)) && j.getItemByFullName(name) != null) {
+                visible.add(name);
+            }
+        }
+        return visible;
+    }
+
+    void index(Item item) {
+        if (!(item instanceof AbstractProject) || item instanceof MatrixConfiguration) {
+            return; // matrix configurations are indexed along with their project
+        }
+        AbstractProject<?,?> p = (AbstractProject<?,?>) item;
+        SCM scm = p.getScm();
+        List<String> names = null;
+        if (p.getPublishersList().get(CloneWorkspacePublisher.class) != null) {
+            names = new ArrayList<String>();
+            if (p instanceof MatrixProject mp) {
+                for (MatrixConfiguration configuration : mp.getActiveConfigurations()) {
+                    names.add(configuration.getFullName());
+                }
+            } else {
+                names.add(p.getFullName());
+            }
+        }
+        synchronized (this) {
+            if (scm instanceof CloneWorkspaceSCM) {
+                owners.put((CloneWorkspaceSCM) scm, new WeakReference<AbstractProject<?,?>>(p));
+            }
+            if (names != null) {
+                parents.put(p.getFullName(), names);
+            } else {
+                parents.remove(p.getFullName());
+            }
+        }
+    }
+
+    /**
+     * Forgets the item with the given name, and everything in it.
+     */
+    synchronized void forget(String fullName) {
+        parents.remove(fullName);
+        parents.keySet().removeIf(name -> name.startsWith(fullName + '/'));
+        // a deleted project still has its SCM, and its name; a renamed one has been given its new name already
+        owners.values().removeIf(ref -> {
+            AbstractProject<?,?> p = ref.get();
+            return p == null || p.getFullName().equals(fullName) || p.getFullName().startsWith(fullName + '/');
+        });
+        CloneWorkspaceSCM.forgetChangeLogParsers(fullName);
+    }
+
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            ProjectIndex index = get();
+            for (AbstractProject<?,?> p : Jenkins.get().allItems(AbstractProject.class)) {
+                index.index(p);
+            }
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            get().index(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            get().index(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            get().index(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().forget(oldFullName);
+            get().index(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().forget(item.getFullName());
+        }
+    }
+
+    /**
+     * Catches configuration changes that don't go through the configuration page.
+     */
+    @Extension
+    public static final class ConfigListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item) {
+                get().index((Item) o);
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Checksum;
+
+/**
+ * Stages of restoring an archive on the node it's extracted on, each running on its own thread so that network,
+ * CPU and disk work overlap instead of taking turns:
+ *
+ * <ol>
+ * <li>{@link Transfer} reads the archive, usually from the controller, in chunks;
+ * <li>the extracting thread decompresses it and works out what to write where;
+ * <li>{@link DiskWriter} creates the files, on one or more threads, and checks them against their checksums on the way.
+ * </ol>
+ *
+ * Stages hand their work over through bounded queues, so a slow stage holds the previous ones back rather than
+ * piling up data in memory. Each stage keeps track of how long it was busy, which tells where the bottleneck is.
+ */
+final class RestorePipeline {
+
+    /**
+     * Size of the chunks the archive is transferred in.
+     */
+    static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the chunks file contents are handed over to the disk writer in.
+     */
+    static final int WRITE_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * How many chunks can be waiting between two stages.
+     */
+    private static final int QUEUE_LENGTH = 16;
+
+    private static final ThreadFactory THREAD_FACTORY = new NamingThreadFactory(new DaemonThreadFactory(), "Clone Workspace restore");
+
+    private RestorePipeline() {
+    }
+
+    /**
+     * How much data went through each stage of a restore, and how long each was busy with it.
+     */
+    static final class Stats implements Serializable {
+        long elapsedNanos;
+        long transferBytes;
+        long transferNanos;
+        long decompressionBytes;
+        long decompressionNanos;
+        long writeBytes;
+        long writeNanos;
+        int writeThreads = 1;
+        int entries;
+        int verified;
+
+        void print(TaskListener listener) {
+            print(listener, Messages.RestorePipeline_Transfer(), transferBytes, transferNanos);
+            print(listener, Messages.RestorePipeline_Decompression(), decompressionBytes, decompressionNanos);
+            print(listener, writeThreads > 1 ? Messages.RestorePipeline_ParallelDiskWrites(writeThreads) : Messages.RestorePipeline_DiskWrites(), writeBytes, writeNanos);
+            if (verified > 0) {
+                listener.getLogger().println(Messages.RestorePipeline_Verified(verified));
+            }
+        }
+
+        private void print(TaskListener listener, String stage, long bytes, long nanos) {
+            listener.getLogger().println(Messages.RestorePipeline_Stage(stage,
+                Functions.humanReadableByteSize(bytes),
+                Functions.humanReadableByteSize(nanos > 0 ? bytes * 1000000000L / nanos : bytes),
+                elapsedNanos > 0 ? nanos * 100 / elapsedNanos : 100,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads a stream ahead of its consumer on a separate thread.
+     */
+    static final class Transfer extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final InputStream in;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_LENGTH);
+        private volatile IOException failure;
+        private volatile boolean closed;
+        private long bytes;
+        private long nanos;
+        private long waitNanos;
+        private byte[] chunk;
+        private int pos;
+
+        Transfer(InputStream in) {
+            this.in = in;
+            THREAD_FACTORY.newThread(this::run).start();
+        }
+
+        private void run() {
+            try (InputStream is = in) {
+                while (!closed) {
+                    long start = System.nanoTime();
+                    byte[] b = is.readNBytes(TRANSFER_CHUNK_SIZE);
+                    nanos += System.nanoTime() - start;
+                    bytes += b.length;
+                    if (b.length == 0) {
+                        break;
+                    }
+                    put(b);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException();
+            } finally {
+                if (closed) {
+                    chunks.clear(); // nobody reads them anymore
+                }
+                try {
+                    put(END);
+                } catch (InterruptedException e) {
+                    // then the consumer will notice the closed stream
+                }
+            }
+        }
+
+        private void put(byte[] b) throws InterruptedException {
+            while (!closed && !chunks.offer(b, 100, TimeUnit.MILLISECONDS)) {
+                // consumer is busy, or gone
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (chunk == null || pos == chunk.length) {
+                if (chunk == END) {
+                    return -1;
+                }
+                long start = System.nanoTime();
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw (IOException) new InterruptedIOException().initCause(e);
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+                pos = 0;
+                if (chunk == END) {
+                    if (failure != null) {
+                        throw new IOException("Failed to transfer the archive", failure);
+                    }
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * What can be read without waiting: the rest of the current chunk, and the chunks already queued up.
+         */
+        @Override
+        public int available() {
+            long n = chunk != null && chunk != END ? chunk.length - pos : 0;
+            for (byte[] b : chunks) {
+                n += b.length;
+            }
+            return (int) Math.min(n, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Time the consumer spent waiting for data.
+         */
+        long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /**
+         * Records the stats of this stage. Only meaningful once the whole stream has been read.
+         */
+        void record(Stats stats) {
+            stats.transferBytes = bytes;
+            stats.transferNanos = nanos;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Writes what's been extracted to disk on separate threads.
+     *
+     * <p>
+     * Each file is written by a single thread, and the producer creates directories and symlinks itself before
+     * handing over the files that go in them. With one thread, everything is written in the order it was handed over;
+     * with more, files are spread over the threads, which helps when there are many small ones, and the result is the same.
+     * Files with a known checksum are checksummed by the thread writing them, as the chunks go by.
+     */
+    static final class DiskWriter implements AutoCloseable {
+        private interface Op {
+            void run() throws IOException, InterruptedException;
+        }
+
+        private static final Op END = () -> {};
+
+        private final Worker[] workers;
+        private volatile Throwable failure;
+        private volatile boolean aborted;
+        private long waitNanos;
+        private int entries;
+
+        /**
+         * @param threads
+         *      How many threads write files. 0 or 1 means a single one.
+         */
+        DiskWriter(int threads) {
+            workers = new Worker[Math.max(1, threads)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker();
+            }
+        }
+
+        private final class Worker implements Runnable {
+            private final BlockingQueue<Op> ops = new ArrayBlockingQueue<Op>(QUEUE_LENGTH);
+            private final Thread thread;
+            private OutputStream out;
+            private Checksum crc;
+            private long bytes;
+            private long nanos;
+            private int verified;
+
+            Worker() {
+                thread = THREAD_FACTORY.newThread(this);
+                thread.start();
+            }
+
+            public void run() {
+                try {
+                    while (true) {
+                        Op op = ops.take();
+                        if (op == END || aborted) {
+                            break;
+                        }
+                        if (failure != null) {
+                            continue; // drain the queue until the producer notices
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            op.run();
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                        nanos += System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    failure = e;
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // already failed
+                        }
+                        out = null;
+                    }
+                }
+            }
+
+            void submit(Op op) throws IOException, InterruptedException {
+                checkFailure();
+                long start = System.nanoTime();
+                ops.put(op);
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable t = failure;
+            if (t instanceof IOException) {
+                throw new IOException(t.getMessage(), t);
+            } else if (t != null) {
+                throw new IOException("Failed to write the restored files", t);
+            }
+        }
+
+        /**
+         * Picks the thread with the least work queued up.
+         */
+        private Worker pick() {
+            Worker w = workers[0];
+            for (int i = 1; i < workers.length; i++) {
+                if (workers[i].ops.remainingCapacity() > w.ops.remainingCapacity()) {
+                    w = workers[i];
+                }
+            }
+            return w;
+        }
+
+        void mkdirs(File d) throws IOException {
+            checkFailure();
+            entries++;
+            RestorePipeline.mkdirs(d);
+        }
+
+        void symlink(File f, String target) throws IOException, InterruptedException {
+            checkFailure();
+            entries++;
+            RestorePipeline.mkdirs(f.getParentFile());
+            Files.deleteIfExists(f.toPath());
+            new FilePath(f).symlinkTo(target, TaskListener.NULL);
+        }
+
+        /**
+         * Writes the rest of the stream into the given file, replacing whatever was there.
+         *
+         * @param checksum
+         *      What {@link SnapshotManifest#newChecksum()} should come up with for the contents, or -1 if unknown.
+         */
+        void write(final File f, InputStream in, final long lastModified, final int mode, final long checksum) throws IOException, InterruptedException {
+            entries++;
+            final Worker w = pick();
+            w.submit(() -> {
+                RestorePipeline.mkdirs(f.getParentFile());
+                Files.deleteIfExists(f.toPath());
+                w.out = Files.newOutputStream(f.toPath());
+                w.crc = checksum != -1 ? SnapshotManifest.newChecksum() : null;
+            });
+            byte[] chunk;
+            while ((chunk = in.readNBytes(WRITE_CHUNK_SIZE)).length > 0) {
+                final byte[] b = chunk;
+                w.submit(() -> {
+                    w.out.write(b);
+                    if (w.crc != null) {
+                        w.crc.update(b, 0, b.length);
+                    }
+                    w.bytes += b.length;
+                });
+            }
+            w.submit(() -> {
+                w.out.close();
+                w.out = null;
+                if (w.crc != null) {
+                    long actual = w.crc.getValue();
+                    w.crc = null;
+                    if (actual != checksum) {
+                        throw new IOException("The archive is corrupted: " + f + " doesn't match its checksum"
+                            + " (expected " + Long.toHexString(checksum) + ", got " + Long.toHexString(actual) + ")");
+                    }
+                    w.verified++;
+                }
+                Path p = f.toPath();
+                if (lastModified >= 0) {
+                    Files.setLastModifiedTime(p, FileTime.fromMillis(lastModified));
+                }
+                chmod(f, mode);
+            });
+        }
+
+        /**
+         * Waits for everything handed over so far to be written.
+         */
+        void finish() throws IOException, InterruptedException {
+            for (Worker w : workers) {
+                w.submit(END);
+            }
+            for (Worker w : workers) {
+                w.thread.join();
+            }
+            checkFailure();
+        }
+
+        /**
+         * Time the producer spent waiting for the writers to catch up.
+         */
+        long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /**
+         * Records the stats of this stage, with the time the writer threads were busy on average.
+         * Only meaningful after {@link #finish()}.
+         */
+        void record(Stats stats) {
+            long bytes = 0, nanos = 0;
+            int verified = 0;
+            for (Worker w : workers) {
+                bytes += w.bytes;
+                nanos += w.nanos;
+                verified += w.verified;
+            }
+            stats.decompressionBytes = bytes;
+            stats.writeBytes = bytes;
+            stats.writeNanos = nanos / workers.length;
+            stats.writeThreads = workers.length;
+            stats.entries = entries;
+            stats.verified = verified;
+        }
+
+        /**
+         * Stops writing, if the restore failed before {@link #finish()} was called.
+         */
+        @Override
+        public void close() {
+            aborted = true;
+            for (Worker w : workers) {
+                if (w.thread.isAlive()) {
+                    w.ops.clear();
+                    w.ops.offer(END);
+                }
+            }
+        }
+    }
+
+    static void mkdirs(File d) throws IOException {
+        if (!d.isDirectory()) {
+            Files.createDirectories(d.toPath());
+        }
+    }
+
+    static void chmod(File f, int mode) throws IOException, InterruptedException {
+        mode &= 07777;
+        if (mode != 0) {
+            new FilePath(f).chmod(mode);
+        }
+    }
+}
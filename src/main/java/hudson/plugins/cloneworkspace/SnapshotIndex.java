@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.WorkspaceSnapshot;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers, for each job, the number of its most recent completed build meeting each of the criteria
+ * ("Any", "Not Failed" and "Successful"), with and without a workspace snapshot, so that finding it doesn't
+ * require walking back the build history, loading every build on the way.
+ *
+ * <p>
+ * The index is kept up to date as builds complete and get deleted, and saved in {@code $JENKINS_HOME}.
+ * Whatever it doesn't know (jobs whose builds completed before this plugin was installed, builds that got deleted)
+ * is found by walking the history the first time it's needed, and remembered from then on. Every build it returns
+ * is checked against the criteria, so a stale index can only cost a walk, never a wrong answer.
+ */
+@Extension
+public class SnapshotIndex {
+
+    /**
+     * Unknown, the history has to be walked.
+     */
+    private static final int UNKNOWN = -1;
+    /**
+     * No build is known to meet the criteria.
+     */
+    private static final int NONE = 0;
+
+    private final Map<String,Latest> jobs = new HashMap<String,Latest>();
+
+    /**
+     * Number of builds completed so far for each job, so that the result of a history walk isn't recorded
+     * when a build completed meanwhile.
+     */
+    private transient Map<String,Integer> completions = new HashMap<String,Integer>();
+    private transient boolean loaded;
+    private transient boolean saveScheduled;
+
+    public static SnapshotIndex get() {
+        return ExtensionList.lookupSingleton(SnapshotIndex.class);
+    }
+
+    /**
+     * Finds the most recent completed build of the project meeting the criteria.
+     *
+     * @param withSnapshot
+     *      If true, only consider builds with a workspace snapshot.
+     */
+    public AbstractBuild<?,?> getMostRecentBuild(AbstractProject<?,?> project, Result criteria, boolean withSnapshot) {
+        int level = levelOf(criteria);
+        if (level < 0) {
+            return null;
+        }
+        int completed;
+        int number;
+        synchronized (this) {
+            completed = completions.getOrDefault(project.getFullName(), 0);
+            number = lookup(project.getFullName(), level, withSnapshot);
+        }
+        if (number == NONE) {
+            return null;
+        }
+        if (number != UNKNOWN) {
+            AbstractBuild<?,?> b = project.getBuildByNumber(number);
+            if (meets(b, level, withSnapshot)) {
+                return b;
+            }
+        }
+        AbstractBuild<?,?> b = withSnapshot
+            ? CloneWorkspaceUtil.getMostRecentBuildForCriteriaWithSnapshot(project.getLastBuild(), criteria)
+            : CloneWorkspaceUtil.getMostRecentBuildForCriteria(project.getLastBuild(), criteria);
+        record(project.getFullName(), level, withSnapshot, b != null ? b.getNumber() : NONE, completed);
+        return b;
+    }
+
+    /**
+     * Index of the criteria in {@link Latest}: 0 for "Any", 1 for "Not Failed", 2 for "Successful"; -1 if the result
+     * doesn't meet any of them.
+     */
+    private static int levelOf(Result result) {
+        if (result == null) {
+            return -1;
+        } else if (result.isBetterOrEqualTo(Result.SUCCESS)) {
+            return 2;
+        } else if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
+            return 1;
+        } else if (result.isBetterOrEqualTo(Result.FAILURE)) {
+            return 0;
+        } else {
+            return -1;
+        }
+    }
+
+    private static boolean meets(AbstractBuild<?,?> b, int level, boolean withSnapshot) {
+        return b != null
+            && !b.isBuilding()
+            && levelOf(b.getResult()) >= level
+            && (!withSnapshot || b.getAction(WorkspaceSnapshot.class) != null);
+    }
+
+    private synchronized int lookup(String job, int level, boolean withSnapshot) {
+        load();
+        Latest latest = jobs.get(job);
+        if (latest == null) {
+            return UNKNOWN;
+        }
+        return (withSnapshot ? latest.withSnapshot : latest.any)[level];
+    }
+
+    /**
+     * Number of the build the index has for the job and criteria, {@code 0} if none meets them and {@code -1} if unknown.
+     */
+    synchronized int getIndexed(String job, Result criteria, boolean withSnapshot) {
+        return lookup(job, levelOf(criteria), withSnapshot);
+    }
+
+    private synchronized void record(String job, int level, boolean withSnapshot, int number, int completed) {
+        if (completions.getOrDefault(job, 0) != completed) {
+            return;
+        }
+        load();
+        Latest latest = jobs.computeIfAbsent(job, k -> new Latest());
+        (withSnapshot ? latest.withSnapshot : latest.any)[level] = number;
+        scheduleSave();
+    }
+
+    /**
+     * Takes a newly completed build into account. Criteria whose most recent build isn't known yet are left alone,
+     * as an older build might be completing after newer ones we don't know about.
+     */
+    synchronized void onCompleted(AbstractBuild<?,?> b) {
+        completions.merge(b.getParent().getFullName(), 1, Integer::sum);
+        int level = levelOf(b.getResult());
+        if (level < 0) {
+            return;
+        }
+        load();
+        Latest latest = jobs.get(b.getParent().getFullName());
+        if (latest == null) {
+            return;
+        }
+        boolean hasSnapshot = b.getAction(WorkspaceSnapshot.class) != null;
+        for (int i = 0; i <= level; i++) {
+            update(latest.any, i, b.getNumber());
+            if (hasSnapshot) {
+                update(latest.withSnapshot, i, b.getNumber());
+            }
+        }
+        scheduleSave();
+    }
+
+    private static void update(int[] numbers, int level, int number) {
+        if (numbers[level] != UNKNOWN && numbers[level] < number) {
+            numbers[level] = number;
+        }
+    }
+
+    /**
+     * Forgets a deleted build, the history will be walked again to find the one that comes before it.
+     */
+    synchronized void onDeleted(AbstractBuild<?,?> b) {
+        load();
+        Latest latest = jobs.get(b.getParent().getFullName());
+        if (latest == null) {
+            return;
+        }
+        for (int[] numbers : new int[][] {latest.any, latest.withSnapshot}) {
+            for (int i = 0; i < numbers.length; i++) {
+                if (numbers[i] == b.getNumber()) {
+                    numbers[i] = UNKNOWN;
+                }
+            }
+        }
+        scheduleSave();
+    }
+
+    synchronized void onLocationChanged(String oldFullName, String newFullName) {
+        load();
+        Latest latest = jobs.remove(oldFullName);
+        if (latest != null) {
+            jobs.put(newFullName, latest);
+            scheduleSave();
+        }
+    }
+
+    synchronized void onDeleted(String fullName) {
+        load();
+        if (jobs.remove(fullName) != null) {
+            scheduleSave();
+        }
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), SnapshotIndex.class.getName() + ".xml"));
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                file.unmarshal(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + ", the build histories will be walked again", e);
+                jobs.clear();
+            }
+        }
+    }
+
+    /**
+     * Saves the index a little later, so that builds completing in a burst only cause one write.
+     */
+    private void scheduleSave() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        Timer.get().schedule(this::save, 5, TimeUnit.SECONDS);
+    }
+
+    private synchronized void save() {
+        saveScheduled = false;
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the workspace snapshot index", e);
+        }
+    }
+
+    /**
+     * Most recent build numbers of a job, by criteria.
+     */
+    private static final class Latest {
+        private final int[] any = new int[] {UNKNOWN, UNKNOWN, UNKNOWN};
+        private final int[] withSnapshot = new int[] {UNKNOWN, UNKNOWN, UNKNOWN};
+
+        @Override
+        public String toString() {
+            return Arrays.toString(any) + Arrays.toString(withSnapshot);
+        }
+    }
+
+    @Extension
+    public static final class BuildListener extends RunListener<Run<?,?>> {
+        @Override
+        public void onCompleted(Run<?,?> r, TaskListener listener) {
+            if (r instanceof AbstractBuild) {
+                get().onCompleted((AbstractBuild<?,?>) r);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            if (r instanceof AbstractBuild) {
+                get().onDeleted((AbstractBuild<?,?>) r);
+            }
+        }
+    }
+
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().onLocationChanged(oldFullName, newFullName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().onDeleted(item.getFullName());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotIndex.class.getName());
+}
@@ -0,0 +1,472 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The list of entries making up a workspace snapshot, with enough metadata about each of them
+ * (size, timestamp, mode, content digest and checksum) to rebuild the tree without the original archive,
+ * and to check that it was rebuilt right.
+ */
+public final class SnapshotManifest implements Serializable, Iterable<SnapshotManifest.Entry> {
+
+    /**
+     * Algorithm used for {@link Entry#getDigest()}.
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int MAGIC = 0x43574d46; // "CWMF"
+    /**
+     * 2 added {@link Entry#getChecksum()}.
+     */
+    private static final int VERSION = 2;
+
+    private final List<Entry> entries;
+
+    private transient Map<String,Entry> byPath;
+
+    public SnapshotManifest(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Iterator<Entry> iterator() {
+        return entries.iterator();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sum of the sizes of all the regular files in this manifest.
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry e : entries) {
+            total += e.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * The entries of this manifest accepted by the given filter.
+     */
+    public SnapshotManifest filter(CloneWorkspaceSnapshot.Filter filter) {
+        List<Entry> selected = new ArrayList<Entry>();
+        for (Entry e : entries) {
+            if (filter.accept(e.getPath())) {
+                selected.add(e);
+            }
+        }
+        return new SnapshotManifest(selected);
+    }
+
+    /**
+     * Looks up an entry by its workspace-relative path, or null if there's none.
+     */
+    public synchronized Entry get(String path) {
+        if (byPath == null) {
+            byPath = new HashMap<String,Entry>(entries.size() * 2);
+            for (Entry e : entries) {
+                byPath.put(e.getPath(), e);
+            }
+        }
+        return byPath.get(path);
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+            writeTo(out);
+        }
+    }
+
+    public static SnapshotManifest read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            return readFrom(in, file.toString());
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry e : entries) {
+            out.writeUTF(e.path);
+            out.writeByte(e.type.ordinal());
+            out.writeLong(e.size);
+            out.writeLong(e.lastModified);
+            out.writeInt(e.mode);
+            out.writeUTF(Util.fixNull(e.digest));
+            out.writeUTF(Util.fixNull(e.linkTarget));
+            out.writeLong(e.checksum);
+        }
+    }
+
+    static SnapshotManifest readFrom(DataInputStream in, String source) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(source + " is not a workspace snapshot manifest");
+        }
+        int version = in.readInt();
+        if (version > VERSION) {
+            throw new IOException(source + " was written by a newer version of this plugin (format " + version + ")");
+        }
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            Entry.Type type = Entry.Type.values()[in.readByte()];
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            int mode = in.readInt();
+            String digest = Util.fixEmpty(in.readUTF());
+            String linkTarget = Util.fixEmpty(in.readUTF());
+            long checksum = version >= 2 ? in.readLong() : -1;
+            entries.add(new Entry(path, type, size, lastModified, mode, digest, linkTarget, checksum));
+        }
+        return new SnapshotManifest(entries);
+    }
+
+    /**
+     * Lists and digests the files selected by the given scanner. The work happens on the node the workspace lives on.
+     */
+    public static SnapshotManifest scan(FilePath ws, DirScanner scanner) throws IOException, InterruptedException {
+        return scan(ws, scanner, null).applyTo(null);
+    }
+
+    /**
+     * Compares the files selected by the given scanner with a previous manifest of the same workspace.
+     * Files whose size, timestamp and mode haven't changed are assumed to have the same contents and aren't
+     * digested again, and only the differences are sent back.
+     *
+     * @param previous
+     *      Manifest to compare against, or null to list and digest everything.
+     */
+    public static Delta scan(FilePath ws, DirScanner scanner, SnapshotManifest previous) throws IOException, InterruptedException {
+        return ws.act(new Scan(scanner, previous));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Checksum used for {@link Entry#getChecksum()}. CRC32C is computed by the CPU on most platforms,
+     * so it can be computed while the contents stream through without slowing them down.
+     */
+    static Checksum newChecksum() {
+        return new CRC32C();
+    }
+
+    static long checksum(File f) throws IOException {
+        Checksum crc = newChecksum();
+        byte[] buf = new byte[8192];
+        try (InputStream in = new FileInputStream(f)) {
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                crc.update(buf, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Digests and checksums a file in a single pass.
+     */
+    static Entry digest(String path, File f, int mode) throws IOException {
+        long size = f.length();
+        long lastModified = f.lastModified();
+        MessageDigest md = newDigest();
+        Checksum crc = newChecksum();
+        byte[] buf = new byte[8192];
+        try (InputStream in = new FileInputStream(f)) {
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                md.update(buf, 0, len);
+                crc.update(buf, 0, len);
+            }
+        }
+        return new Entry(path, Entry.Type.FILE, size, lastModified, mode, Util.toHexString(md.digest()), null, crc.getValue());
+    }
+
+    /**
+     * A single file, directory or symbolic link in the snapshot.
+     */
+    public static final class Entry implements Serializable {
+        public enum Type { FILE, DIRECTORY, SYMLINK }
+
+        private final String path;
+        private final Type type;
+        private final long size;
+        private final long lastModified;
+        private final int mode;
+        private final String digest;
+        private final String linkTarget;
+        private final long checksum;
+
+        Entry(String path, Type type, long size, long lastModified, int mode, String digest, String linkTarget, long checksum) {
+            this.path = path;
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.digest = digest;
+            this.linkTarget = linkTarget;
+            this.checksum = checksum;
+        }
+
+        public static Entry file(String path, long size, long lastModified, int mode, String digest) {
+            return new Entry(path, Type.FILE, size, lastModified, mode, digest, null, -1);
+        }
+
+        public static Entry directory(String path, long lastModified, int mode) {
+            return new Entry(path, Type.DIRECTORY, 0, lastModified, mode, null, null, -1);
+        }
+
+        public static Entry symlink(String path, String linkTarget) {
+            return new Entry(path, Type.SYMLINK, 0, 0, -1, null, linkTarget, -1);
+        }
+
+        /**
+         * Workspace-relative path, always using '/' as the separator.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public boolean isFile() {
+            return type == Type.FILE;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Unix mode bits, or -1 if unknown (e.g. on Windows.)
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        /**
+         * Hex-encoded {@link #DIGEST_ALGORITHM} digest of the file contents, or null if this isn't a file
+         * or the snapshot wasn't digested.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        public String getLinkTarget() {
+            return linkTarget;
+        }
+
+        /**
+         * CRC32C of the file contents, or -1 if this isn't a file or the snapshot predates checksums.
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Copy of this entry describing different contents, for files that changed after they were scanned.
+         * The checksum, computed from the old contents, is dropped.
+         */
+        public Entry withContents(String digest, long size, long lastModified, int mode) {
+            return new Entry(path, type, size, lastModified, mode, digest, linkTarget, -1);
+        }
+
+        /**
+         * Copy of this entry with the checksum of the contents that were actually archived.
+         */
+        public Entry withChecksum(long checksum) {
+            return new Entry(path, type, size, lastModified, mode, digest, linkTarget, checksum);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Differences between a workspace and a previous manifest of it.
+     */
+    public static final class Delta implements Serializable {
+        private final List<Entry> added = new ArrayList<Entry>();
+        private final List<Entry> changed = new ArrayList<Entry>();
+        private final List<String> deleted = new ArrayList<String>();
+        private int unchanged;
+
+        public List<Entry> getAdded() {
+            return added;
+        }
+
+        public List<Entry> getChanged() {
+            return changed;
+        }
+
+        public List<String> getDeleted() {
+            return deleted;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Builds the manifest of the current workspace from the previous one this delta was computed against.
+         */
+        public SnapshotManifest applyTo(SnapshotManifest previous) {
+            Map<String,Entry> result = new LinkedHashMap<String,Entry>();
+            if (previous != null) {
+                for (Entry e : previous) {
+                    result.put(e.getPath(), e);
+                }
+            }
+            for (String path : deleted) {
+                result.remove(path);
+            }
+            for (Entry e : changed) {
+                result.put(e.getPath(), e);
+            }
+            for (Entry e : added) {
+                result.put(e.getPath(), e);
+            }
+            return new SnapshotManifest(new ArrayList<Entry>(result.values()));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Scan extends MasterToSlaveFileCallable<Delta> {
+        private final DirScanner scanner;
+        private final SnapshotManifest previous;
+
+        Scan(DirScanner scanner, SnapshotManifest previous) {
+            this.scanner = scanner;
+            this.previous = previous;
+        }
+
+        public Delta invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            final Delta delta = new Delta();
+            final Set<String> seen = new HashSet<String>();
+            scanner.scan(dir, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    String path = relativePath.replace('\\', '/');
+                    Entry old = previous != null ? previous.get(path) : null;
+                    int mode = IOUtils.mode(f);
+                    if (f.isDirectory()) {
+                        // a directory's timestamp changes with what's in it, which is accounted for already
+                        if (old != null && old.getType() == Entry.Type.DIRECTORY && old.getMode() == mode) {
+                            seen.add(path);
+                        } else {
+                            add(old, Entry.directory(path, f.lastModified(), mode));
+                        }
+                    } else if (old != null && old.isFile() && old.getSize() == f.length()
+                            && old.getLastModified() == f.lastModified() && old.getMode() == mode) {
+                        seen.add(path);
+                        delta.unchanged++;
+                    } else {
+                        add(old, digest(path, f, mode));
+                    }
+                }
+
+                private void add(Entry old, Entry e) {
+                    seen.add(e.getPath());
+                    (old == null ? delta.added : delta.changed).add(e);
+                }
+
+                @Override
+                public boolean understandsSymlink() {
+                    return true;
+                }
+
+                @Override
+                public void visitSymlink(File link, String target, String relativePath) throws IOException {
+                    String path = relativePath.replace('\\', '/');
+                    add(previous != null ? previous.get(path) : null, Entry.symlink(path, target));
+                }
+            });
+            if (previous != null) {
+                for (Entry e : previous) {
+                    if (!seen.contains(e.getPath())) {
+                        delta.deleted.add(e.getPath());
+                    }
+                }
+            }
+            return delta;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
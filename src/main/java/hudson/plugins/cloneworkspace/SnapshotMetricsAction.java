@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long taking or restoring a snapshot took, and how big it was, recorded on the build that did it.
+ * Exported through the remote API of the build. Sizes and timings a kind of snapshot doesn't tell are -1.
+ *
+ * @see JobSnapshotMetrics
+ */
+@ExportedBean
+public class SnapshotMetricsAction implements Action {
+
+    public enum Kind { SNAPSHOT, RESTORE }
+
+    private final Kind kind;
+    private final String parentJobName;
+    private final int parentBuildNumber;
+    private final String snapshotName;
+    private final String archiveMethod;
+
+    int entries = -1;
+    long rawBytes = -1;
+    long storedBytes = -1;
+    long scanMillis = -1;
+    long compressionMillis = -1;
+    long transferMillis = -1;
+    long writeMillis = -1;
+    long totalMillis = -1;
+
+    SnapshotMetricsAction(Kind kind, String parentJobName, int parentBuildNumber, String snapshotName, String archiveMethod) {
+        this.kind = kind;
+        this.parentJobName = parentJobName;
+        this.parentBuildNumber = parentBuildNumber;
+        this.snapshotName = snapshotName;
+        this.archiveMethod = archiveMethod;
+    }
+
+    @Exported
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Full name of the project that took the snapshot.
+     */
+    @Exported
+    public String getParentJobName() {
+        return parentJobName;
+    }
+
+    @Exported
+    public int getParentBuildNumber() {
+        return parentBuildNumber;
+    }
+
+    /**
+     * Name of the {@link NamedSnapshot}, or null for the main snapshot.
+     */
+    @Exported
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    /**
+     * Archive method of the snapshot, or null if unknown.
+     */
+    @Exported
+    public String getArchiveMethod() {
+        return archiveMethod;
+    }
+
+    /**
+     * Number of files, directories and symlinks archived or restored.
+     */
+    @Exported
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Size of the files archived or restored.
+     */
+    @Exported
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Size of the archive written or read. With the deduplicated store, the size of the contents it didn't have yet.
+     */
+    @Exported
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    @Exported
+    public double getCompressionRatio() {
+        return rawBytes > 0 && storedBytes > 0 ? (double) rawBytes / storedBytes : -1;
+    }
+
+    /**
+     * Time spent walking the workspace to find the files to archive.
+     */
+    @Exported
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * Time spent reading and packing the files on the node, compression included if it happens there.
+     * For a restore, the time spent decompressing and unpacking the archive.
+     */
+    @Exported
+    public long getCompressionMillis() {
+        return compressionMillis;
+    }
+
+    /**
+     * Time spent sending the archive, or the files the store didn't have, between the node and the controller.
+     */
+    @Exported
+    public long getTransferMillis() {
+        return transferMillis;
+    }
+
+    /**
+     * Time spent writing the archive on the controller, or the restored files on the node.
+     */
+    @Exported
+    public long getWriteMillis() {
+        return writeMillis;
+    }
+
+    @Exported
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
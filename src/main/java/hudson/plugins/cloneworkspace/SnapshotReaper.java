@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.WorkspaceSnapshot;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the workspace snapshots that are no longer needed, in the background rather than on the build thread.
+ *
+ * <p>
+ * The snapshots of each job are tracked as they get archived. Whenever a new one is, and periodically, the older ones
+ * are deleted unless the {@link CloneWorkspacePublisher} retention settings say to keep them (the last few, or the ones
+ * taken recently), or they're in use: being restored by a child, which holds a {@link Lease} on the snapshot meanwhile,
+ * or referenced by a running build of a child.
+ *
+ * <p>
+ * A deleted snapshot has its {@link WorkspaceSnapshot} action removed from its build before anything is deleted,
+ * and leases are only granted while the action is there, so a restore can check that the snapshot it leased
+ * is still around.
+ */
+@Extension
+public class SnapshotReaper {
+
+    /**
+     * Numbers of the builds with a snapshot, by job full name.
+     */
+    private final Map<String,TreeSet<Integer>> snapshots = new HashMap<String,TreeSet<Integer>>();
+
+    private transient Map<String,Integer> leases = new HashMap<String,Integer>();
+    private transient boolean loaded;
+    private transient boolean saveScheduled;
+
+    public static SnapshotReaper get() {
+        return ExtensionList.lookupSingleton(SnapshotReaper.class);
+    }
+
+    /**
+     * Deletes the snapshots that are no longer needed, for every job.
+     */
+    void reapAll(TaskListener listener) {
+        List<String> jobs;
+        synchronized (this) {
+            load();
+            jobs = new ArrayList<String>(snapshots.keySet());
+        }
+        for (String job : jobs) {
+            reap(job, listener);
+        }
+    }
+
+    /**
+     * Starts keeping track of the snapshot of the given build.
+     */
+    public synchronized void track(AbstractBuild<?,?> b) {
+        load();
+        snapshots.computeIfAbsent(b.getParent().getFullName(), k -> new TreeSet<Integer>()).add(b.getNumber());
+        scheduleSave();
+    }
+
+    /**
+     * Deletes the snapshots of the project that are no longer needed, in the background.
+     */
+    public void schedule(AbstractProject<?,?> project) {
+        final String job = project.getFullName();
+        Timer.get().submit(() -> {
+            try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                reap(job, TaskListener.NULL);
+            }
+        });
+    }
+
+    /**
+     * Prevents the snapshot of the given build from being deleted until the lease is closed.
+     * Callers should check the build still has its snapshot once they hold the lease.
+     */
+    public synchronized Lease lease(AbstractBuild<?,?> b) {
+        String key = key(b.getParent().getFullName(), b.getNumber());
+        leases.merge(key, 1, Integer::sum);
+        return new Lease(key);
+    }
+
+    public final class Lease implements AutoCloseable {
+        private final String key;
+        private boolean closed;
+
+        private Lease(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void close() {
+            synchronized (SnapshotReaper.this) {
+                if (!closed) {
+                    closed = true;
+                    leases.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+                }
+            }
+        }
+    }
+
+    private static String key(String job, int number) {
+        return job + '#' + number;
+    }
+
+    void reap(String jobName, TaskListener listener) {
+        AbstractProject<?,?> job = Jenkins.get().getItemByFullName(jobName, AbstractProject.class);
+        List<Integer> numbers;
+        synchronized (this) {
+            load();
+            TreeSet<Integer> tracked = snapshots.get(jobName);
+            if (tracked != null && job == null) {
+                snapshots.remove(jobName);
+                scheduleSave();
+            }
+            if (tracked == null || job == null) {
+                return;
+            }
+            numbers = new ArrayList<Integer>(tracked.descendingSet());
+        }
+
+        CloneWorkspacePublisher publisher = job.getPublishersList().get(CloneWorkspacePublisher.class);
+        int retainSnapshots = publisher != null ? publisher.getRetainSnapshots() : 1;
+        long retainMillis = publisher != null ? TimeUnit.HOURS.toMillis(publisher.getRetainHours()) : 0;
+        String archiveMethod = publisher != null ? publisher.getArchiveMethod() : "TAR";
+
+        int kept = 0;
+        for (int number : numbers) {
+            AbstractBuild<?,?> b = job.getBuildByNumber(number);
+            WorkspaceSnapshot snapshot = b != null ? b.getAction(WorkspaceSnapshot.class) : null;
+            if (snapshot == null) {
+                untrack(jobName, number);
+                continue;
+            }
+            if (snapshot instanceof PendingSnapshot && ((PendingSnapshot) snapshot).getState() == PendingSnapshot.State.PENDING) {
+                continue; // not archived yet
+            }
+            if (kept < retainSnapshots || b.isBuilding()) {
+                kept++;
+                continue;
+            }
+            if (b.getTimeInMillis() + b.getDuration() + retainMillis > System.currentTimeMillis() || isReferenced(jobName, number)) {
+                continue;
+            }
+            NamedSnapshots named;
+            synchronized (this) {
+                if (leases.containsKey(key(jobName, number)) || b.getAction(WorkspaceSnapshot.class) != snapshot) {
+                    continue; // in use, or being deleted by a concurrent reap
+                }
+                b.removeAction(snapshot);
+                named = b.getAction(NamedSnapshots.class);
+                if (named != null) {
+                    b.removeAction(named);
+                }
+            }
+            try {
+                b.save();
+                delete(b, snapshot, archiveMethod);
+                if (named != null) {
+                    for (WorkspaceSnapshot s : named.getAll()) {
+                        if (s instanceof CloneWorkspacePublisher.WorkspaceSnapshotDedup) {
+                            SnapshotStore.get().release(((CloneWorkspacePublisher.WorkspaceSnapshotDedup) s).getManifestId());
+                        }
+                    }
+                    Util.deleteRecursive(new File(b.getRootDir(), CloneWorkspaceUtil.NAMED_SNAPSHOTS_DIR_NAME));
+                }
+                untrack(jobName, number);
+                listener.getLogger().println(Messages.SnapshotReaper_Deleted(b.getFullDisplayName()));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete the workspace snapshot of " + b, e);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a running build restored its workspace from the snapshot of the given build.
+     */
+    private static boolean isReferenced(String job, int number) {
+        for (Computer c : Jenkins.get().getComputers()) {
+            List<Executor> executors = new ArrayList<Executor>(c.getExecutors());
+            executors.addAll(c.getOneOffExecutors());
+            for (Executor e : executors) {
+                Queue.Executable x = e.getCurrentExecutable();
+                if (x instanceof AbstractBuild) {
+                    CloneWorkspaceParentAction a = ((AbstractBuild<?,?>) x).getAction(CloneWorkspaceParentAction.class);
+                    if (a != null && a.getParentBuildNumber() == number && job.equals(a.getParentJobName())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void delete(AbstractBuild<?,?> b, WorkspaceSnapshot snapshot, String archiveMethod) throws IOException {
+        if (snapshot instanceof CloneWorkspacePublisher.WorkspaceSnapshotDedup) {
+            SnapshotStore.get().release(((CloneWorkspacePublisher.WorkspaceSnapshotDedup) snapshot).getManifestId());
+            return;
+        }
+        String method = snapshot instanceof CloneWorkspacePublisher.ArchiveSnapshot
+            ? ((CloneWorkspacePublisher.ArchiveSnapshot) snapshot).getArchiveMethod()
+            : snapshot instanceof PendingSnapshot
+            ? ((PendingSnapshot) snapshot).getArchiveMethod()
+            : archiveMethod;
+        Util.deleteRecursive(new File(b.getRootDir(), CloneWorkspaceUtil.getFileNameForMethod(method)));
+        Util.deleteFile(new File(b.getRootDir(), CloneWorkspaceUtil.MANIFEST_FILE_NAME));
+        Util.deleteFile(new File(b.getRootDir(), CloneWorkspaceUtil.INDEX_FILE_NAME));
+    }
+
+    private synchronized void untrack(String job, int number) {
+        TreeSet<Integer> tracked = snapshots.get(job);
+        if (tracked != null && tracked.remove(number)) {
+            if (tracked.isEmpty()) {
+                snapshots.remove(job);
+            }
+            scheduleSave();
+        }
+    }
+
+    synchronized void onLocationChanged(String oldFullName, String newFullName) {
+        load();
+        TreeSet<Integer> tracked = snapshots.remove(oldFullName);
+        if (tracked != null) {
+            snapshots.put(newFullName, tracked);
+            scheduleSave();
+        }
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), SnapshotReaper.class.getName() + ".xml"));
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                file.unmarshal(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + ", older workspace snapshots won't be deleted", e);
+                snapshots.clear();
+            }
+        }
+    }
+
+    /**
+     * Saves the tracked snapshots a little later, so that changes coming in a burst only cause one write.
+     */
+    private void scheduleSave() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        Timer.get().schedule(this::save, 5, TimeUnit.SECONDS);
+    }
+
+    private synchronized void save() {
+        saveScheduled = false;
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the tracked workspace snapshots", e);
+        }
+    }
+
+    /**
+     * Catches up with the snapshots that expired since their job last archived one.
+     */
+    @Extension
+    public static final class PeriodicReap extends AsyncPeriodicWork {
+        public PeriodicReap() {
+            super("Clone Workspace snapshot reaper");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(5);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            get().reapAll(listener);
+        }
+    }
+
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().onLocationChanged(oldFullName, newFullName);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotReaper.class.getName());
+}
@@ -0,0 +1,592 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Util;
+import hudson.WorkspaceSnapshot;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cloneworkspace.CloneWorkspacePublisher.WorkspaceSnapshotDedup;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import jenkins.model.Jenkins;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store shared by all the builds archiving with the "DEDUP" method.
+ *
+ * <p>
+ * Each distinct file content is kept exactly once under {@code objects/}, named after its
+ * {@link SnapshotManifest#DIGEST_ALGORITHM} digest. Each snapshot is a {@link SnapshotManifest}
+ * under {@code manifests/}, and the builds only record the id of their manifest.
+ * Objects are reference-counted by the manifests pointing at them and deleted once the last one goes away.
+ * The counts aren't persisted; they're rebuilt from the manifests the first time the store is used.
+ *
+ * @see WorkspaceSnapshotDedup
+ */
+@Extension
+public class SnapshotStore {
+
+    private final File rootDir;
+
+    /**
+     * Number of manifest entries referencing each object. An object is present in the store iff it's in this map.
+     */
+    private final Map<String,Integer> references = new HashMap<String,Integer>();
+
+    /**
+     * Contents being uploaded by a publish, by digest. Concurrent publishes of the same contents, typically by the
+     * configurations of a matrix build, wait for the first upload instead of each transferring and writing them again.
+     */
+    private final Map<String,CountDownLatch> uploading = new HashMap<String,CountDownLatch>();
+
+    private boolean loaded;
+
+    public SnapshotStore() {
+        this(new File(Jenkins.get().getRootDir(), "clone-workspace-scm"));
+    }
+
+    SnapshotStore(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    public static SnapshotStore get() {
+        return ExtensionList.lookupSingleton(SnapshotStore.class);
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    private File getObjectsDir() {
+        return new File(rootDir, "objects");
+    }
+
+    private File getManifestsDir() {
+        return new File(rootDir, "manifests");
+    }
+
+    private File getTmpDir() {
+        return new File(rootDir, "tmp");
+    }
+
+    /**
+     * File holding the contents with the given digest, whether or not it's actually present.
+     */
+    File getObject(String digest) {
+        return new File(new File(getObjectsDir(), digest.substring(0, 2)), digest.substring(2));
+    }
+
+    File getManifestFile(String id) {
+        return new File(getManifestsDir(), id + ".manifest");
+    }
+
+    public SnapshotManifest getManifest(String id) throws IOException {
+        return SnapshotManifest.read(getManifestFile(id));
+    }
+
+    /**
+     * Rebuilds the reference counts from the manifests on disk, and throws away the objects
+     * left behind by interrupted uploads or releases.
+     */
+    private synchronized void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        File[] manifests = getManifestsDir().listFiles();
+        if (manifests != null) {
+            for (File f : manifests) {
+                try {
+                    for (SnapshotManifest.Entry e : SnapshotManifest.read(f)) {
+                        if (e.isFile()) {
+                            increment(e.getDigest());
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Discarding unreadable snapshot manifest " + f, e);
+                    Util.deleteFile(f);
+                }
+            }
+        }
+        File[] buckets = getObjectsDir().listFiles();
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] objects = bucket.listFiles();
+                if (objects == null) {
+                    continue;
+                }
+                for (File o : objects) {
+                    if (!references.containsKey(bucket.getName() + o.getName())) {
+                        Util.deleteFile(o);
+                    }
+                }
+            }
+        }
+        Util.deleteRecursive(getTmpDir());
+        loaded = true;
+    }
+
+    private void increment(String digest) {
+        Integer count = references.get(digest);
+        references.put(digest, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Takes a reference on every entry already in the store, and returns the ones that still need to be uploaded,
+     * claiming their upload. The entries whose contents another publish is uploading are added to {@code waiting}.
+     */
+    private synchronized List<SnapshotManifest.Entry> reserve(Iterable<SnapshotManifest.Entry> entries, List<SnapshotManifest.Entry> reserved,
+                                                              Map<String,CountDownLatch> claimed, List<SnapshotManifest.Entry> waiting) {
+        List<SnapshotManifest.Entry> missing = new ArrayList<SnapshotManifest.Entry>();
+        for (SnapshotManifest.Entry e : entries) {
+            if (!e.isFile()) {
+                continue;
+            }
+            if (references.containsKey(e.getDigest())) {
+                increment(e.getDigest());
+                reserved.add(e);
+            } else if (claimed.containsKey(e.getDigest())) {
+                missing.add(e); // same contents twice in this workspace
+            } else if (uploading.containsKey(e.getDigest())) {
+                waiting.add(e);
+            } else {
+                CountDownLatch latch = new CountDownLatch(1);
+                uploading.put(e.getDigest(), latch);
+                claimed.put(e.getDigest(), latch);
+                missing.add(e);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Lets the publishes waiting for the contents we claimed go on, whether or not we managed to upload them.
+     */
+    private synchronized void unclaim(Map<String,CountDownLatch> claimed) {
+        for (Map.Entry<String,CountDownLatch> c : claimed.entrySet()) {
+            uploading.remove(c.getKey(), c.getValue());
+            c.getValue().countDown();
+        }
+        claimed.clear();
+    }
+
+    private void await(List<SnapshotManifest.Entry> entries) throws InterruptedException {
+        for (SnapshotManifest.Entry e : entries) {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = uploading.get(e.getDigest());
+            }
+            if (latch != null) {
+                latch.await();
+            }
+        }
+    }
+
+    /**
+     * Moves freshly uploaded contents into place and takes a reference on them. This needs to happen atomically
+     * with respect to {@link #release(SnapshotManifest)}, which could otherwise delete the object right under us.
+     */
+    private synchronized void commit(File tmp, String digest) throws IOException {
+        File object = getObject(digest);
+        Util.createDirectories(object.getParentFile().toPath());
+        Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        increment(digest);
+    }
+
+    private synchronized void release(SnapshotManifest manifest) throws IOException {
+        for (SnapshotManifest.Entry e : manifest) {
+            if (!e.isFile()) {
+                continue;
+            }
+            Integer count = references.get(e.getDigest());
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                references.put(e.getDigest(), count - 1);
+            } else {
+                references.remove(e.getDigest());
+                Util.deleteFile(getObject(e.getDigest()));
+            }
+        }
+    }
+
+    /**
+     * Archives the files selected by the scanner into the store, transferring only the contents it doesn't have yet.
+     *
+     * @param baseId
+     *      Id of an earlier manifest of the same workspace, typically the previous build's, or null.
+     *      Files that look unchanged since then (same size, timestamp and mode) reuse its digests
+     *      instead of being read again, and only the differences come back from the agent.
+     * @return the id of the new manifest, to be passed to {@link #restore} and {@link #release(String)}.
+     */
+    public String publish(FilePath ws, DirScanner scanner, String baseId, TaskListener listener) throws IOException, InterruptedException {
+        return publish(ws, scanner, baseId, listener, null);
+    }
+
+    /**
+     * @param metrics
+     *      Filled in with the sizes and timings of the snapshot, unless null.
+     */
+    String publish(FilePath ws, DirScanner scanner, String baseId, TaskListener listener, SnapshotMetricsAction metrics) throws IOException, InterruptedException {
+        load();
+        SnapshotManifest base = null;
+        if (baseId != null) {
+            try {
+                base = getManifest(baseId);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Base manifest " + baseId + " is gone, digesting the whole workspace", e);
+            }
+        }
+        long start = System.nanoTime();
+        SnapshotManifest.Delta delta = SnapshotManifest.scan(ws, scanner, base);
+        long scanned = System.nanoTime();
+        if (base != null) {
+            listener.getLogger().println(Messages.SnapshotStore_Delta(delta.getAdded().size(), delta.getChanged().size(), delta.getDeleted().size(), delta.getUnchanged()));
+        }
+        SnapshotManifest manifest = delta.applyTo(base);
+        List<SnapshotManifest.Entry> reserved = new ArrayList<SnapshotManifest.Entry>();
+        List<SnapshotManifest.Entry> uploaded = new ArrayList<SnapshotManifest.Entry>();
+        Map<String,CountDownLatch> claimed = new HashMap<String,CountDownLatch>();
+        List<SnapshotManifest.Entry> waiting = new ArrayList<SnapshotManifest.Entry>();
+        try {
+            List<SnapshotManifest.Entry> missing = reserve(manifest, reserved, claimed, waiting);
+            if (!missing.isEmpty()) {
+                long bytes = 0;
+                for (SnapshotManifest.Entry e : missing) {
+                    bytes += e.getSize();
+                }
+                listener.getLogger().println(Messages.SnapshotStore_Uploading(missing.size(), manifest.size(), Functions.humanReadableByteSize(bytes)));
+                manifest = upload(ws, manifest, missing, uploaded);
+            }
+            // only wait for the others once they can have what we uploaded, or two publishes could wait for each other
+            unclaim(claimed);
+            while (!waiting.isEmpty()) {
+                listener.getLogger().println(Messages.SnapshotStore_Waiting(waiting.size()));
+                await(waiting);
+                List<SnapshotManifest.Entry> awaited = waiting;
+                waiting = new ArrayList<SnapshotManifest.Entry>();
+                // whatever the other publish failed to upload, we upload ourselves
+                missing = reserve(awaited, reserved, claimed, waiting);
+                if (!missing.isEmpty()) {
+                    manifest = upload(ws, manifest, missing, uploaded);
+                }
+                unclaim(claimed);
+            }
+            if (metrics != null) {
+                long bytes = 0;
+                for (SnapshotManifest.Entry e : uploaded) {
+                    bytes += e.getSize();
+                }
+                metrics.entries = manifest.size();
+                metrics.rawBytes = manifest.getTotalSize();
+                metrics.storedBytes = bytes;
+                metrics.scanMillis = TimeUnit.NANOSECONDS.toMillis(scanned - start);
+                metrics.transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanned);
+            }
+            String id = UUID.randomUUID().toString();
+            File manifestFile = getManifestFile(id);
+            Util.createDirectories(manifestFile.getParentFile().toPath());
+            manifest.write(manifestFile);
+            return id;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // give back whatever we took, so that the contents don't stay in the store forever
+            List<SnapshotManifest.Entry> taken = new ArrayList<SnapshotManifest.Entry>(reserved);
+            taken.addAll(uploaded);
+            release(new SnapshotManifest(taken));
+            throw e;
+        } finally {
+            unclaim(claimed);
+        }
+    }
+
+    /**
+     * Pulls the contents of the given entries from the workspace into the store.
+     * Files that were modified since they were scanned are stored under their new digest,
+     * and the returned manifest reflects that.
+     *
+     * <p>
+     * The tar of the files is streamed from the workspace straight into the objects, each file being digested as
+     * it's written, so the contents only hit the disk once.
+     */
+    private SnapshotManifest upload(final FilePath ws, SnapshotManifest manifest, List<SnapshotManifest.Entry> missing, List<SnapshotManifest.Entry> uploaded) throws IOException, InterruptedException {
+        File tmp = getTmpDir();
+        Util.createDirectories(tmp.toPath());
+        int before = uploaded.size();
+        final List<String> paths = new ArrayList<String>(missing.size());
+        for (SnapshotManifest.Entry e : missing) {
+            paths.add(e.getPath());
+        }
+        Map<String,SnapshotManifest.Entry> updated = new LinkedHashMap<String,SnapshotManifest.Entry>();
+        for (SnapshotManifest.Entry e : manifest) {
+            updated.put(e.getPath(), e);
+        }
+
+        final FastPipedInputStream in = new FastPipedInputStream();
+        final FastPipedOutputStream out = new FastPipedOutputStream(in);
+        Future<Void> reader = Computer.threadPoolForRemoting.submit(() -> {
+            try (OutputStream os = out) {
+                ws.tar(os, new ListScanner(paths));
+            }
+            return null;
+        });
+        // closing the pipe early makes the tar fail rather than wait for us forever
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new BufferedInputStream(in))) {
+            TarArchiveEntry te;
+            while ((te = tar.getNextTarEntry()) != null) {
+                SnapshotManifest.Entry e = updated.get(te.getName());
+                if (e == null || !e.isFile()) {
+                    continue;
+                }
+                String digest = store(tar, tmp);
+                if (!digest.equals(e.getDigest())) {
+                    // the size, timestamp and mode have to describe what was stored, or the snapshot can't be rebuilt
+                    e = e.withContents(digest, te.getSize(), te.getModTime().getTime(),
+                        e.getMode() == -1 ? -1 : te.getMode());
+                    updated.put(e.getPath(), e);
+                }
+                uploaded.add(e);
+            }
+            // the padding after the end of the archive
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        try {
+            reader.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (uploaded.size() - before != missing.size()) {
+            throw new IOException(Messages.SnapshotStore_FilesVanished(missing.size() - (uploaded.size() - before)));
+        }
+        return new SnapshotManifest(new ArrayList<SnapshotManifest.Entry>(updated.values()));
+    }
+
+    /**
+     * Copies the stream into the store, named after the digest of its contents.
+     */
+    private String store(InputStream in, File tmp) throws IOException {
+        File f = File.createTempFile("object", null, tmp);
+        MessageDigest md = SnapshotManifest.newDigest();
+        try {
+            try (OutputStream out = new DigestOutputStream(new FileOutputStream(f), md)) {
+                in.transferTo(out);
+            }
+            String digest = Util.toHexString(md.digest());
+            commit(f, digest);
+            return digest;
+        } finally {
+            Util.deleteFile(f);
+        }
+    }
+
+    /**
+     * Rebuilds the tree described by the given manifest into the directory.
+     *
+     * @param filter
+     *      Entries to restore, or null for all of them.
+     */
+    public void restore(String id, FilePath dst, CloneWorkspaceSnapshot.Filter filter) throws IOException, InterruptedException {
+        restore(id, dst, filter, null);
+    }
+
+    /**
+     * @param stats
+     *      Filled in with how many entries and bytes were restored, and how long it took, unless null.
+     *      The stages aren't timed separately, the tar being sent and extracted in one go.
+     */
+    void restore(String id, FilePath dst, CloneWorkspaceSnapshot.Filter filter, RestorePipeline.Stats stats) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        SnapshotManifest manifest = getManifest(id);
+        if (filter != null) {
+            manifest = manifest.filter(filter);
+        }
+        final SnapshotManifest restored = manifest;
+        final FastPipedInputStream in = new FastPipedInputStream();
+        final FastPipedOutputStream out = new FastPipedOutputStream(in);
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        Future<Void> writer = Computer.threadPoolForRemoting.submit(() -> {
+            try (OutputStream os = counter) {
+                writeTar(restored, os);
+            }
+            return null;
+        });
+        dst.untarFrom(in, FilePath.TarCompression.NONE);
+        try {
+            writer.get();
+        } catch (ExecutionException e) {
+            throw new IOException(Messages.SnapshotStore_RestoreFailed(id), e.getCause());
+        }
+        if (stats != null) {
+            stats.entries = restored.size();
+            stats.writeBytes = restored.getTotalSize();
+            stats.transferBytes = counter.getByteCount();
+            stats.elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    private void writeTar(SnapshotManifest manifest, OutputStream os) throws IOException {
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(new BufferedOutputStream(os));
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        for (SnapshotManifest.Entry e : manifest) {
+            TarArchiveEntry te;
+            switch (e.getType()) {
+            case SYMLINK:
+                te = new TarArchiveEntry(e.getPath(), TarConstants.LF_SYMLINK);
+                te.setLinkName(e.getLinkTarget());
+                tar.putArchiveEntry(te);
+                break;
+            case DIRECTORY:
+                te = new TarArchiveEntry(e.getPath() + '/');
+                te.setModTime(e.getLastModified());
+                if (e.getMode() != -1) {
+                    te.setMode(e.getMode());
+                }
+                tar.putArchiveEntry(te);
+                break;
+            default:
+                te = new TarArchiveEntry(e.getPath());
+                te.setSize(e.getSize());
+                te.setModTime(e.getLastModified());
+                if (e.getMode() != -1) {
+                    te.setMode(e.getMode());
+                }
+                tar.putArchiveEntry(te);
+                try (InputStream in = new FileInputStream(getObject(e.getDigest()))) {
+                    in.transferTo(tar);
+                }
+                break;
+            }
+            tar.closeArchiveEntry();
+        }
+        tar.close();
+    }
+
+    /**
+     * Drops the given manifest and every object only it was referencing.
+     * Does nothing if it was already released.
+     */
+    public void release(String id) throws IOException {
+        load();
+        File manifestFile = getManifestFile(id);
+        synchronized (this) {
+            if (!manifestFile.exists()) {
+                return;
+            }
+            SnapshotManifest manifest = SnapshotManifest.read(manifestFile);
+            Util.deleteFile(manifestFile);
+            release(manifest);
+        }
+    }
+
+    /**
+     * {@link DirScanner} selecting a fixed list of workspace-relative files.
+     */
+    private static final class ListScanner extends DirScanner {
+        private final List<String> paths;
+
+        ListScanner(List<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : paths) {
+                File f = new File(dir, path);
+                if (f.isFile()) {
+                    visitor.visit(f, path);
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Releases the snapshots of builds being deleted, so their contents don't linger in the store.
+     */
+    @Extension
+    public static final class DeletionListener extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            List<WorkspaceSnapshot> snapshots = new ArrayList<WorkspaceSnapshot>(r.getActions(WorkspaceSnapshot.class));
+            for (NamedSnapshots named : r.getActions(NamedSnapshots.class)) {
+                snapshots.addAll(named.getAll());
+            }
+            for (WorkspaceSnapshot snapshot : snapshots) {
+                if (!(snapshot instanceof WorkspaceSnapshotDedup)) {
+                    continue;
+                }
+                try {
+                    SnapshotStore.get().release(((WorkspaceSnapshotDedup) snapshot).getManifestId());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to release the workspace snapshot of " + r, e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotStore.class.getName());
+}
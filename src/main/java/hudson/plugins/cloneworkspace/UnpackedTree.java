@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot kept as a plain directory tree in the build directory, for the "UNPACKED" method.
+ *
+ * <p>
+ * The tree is never modified once archived, and its files are made read-only. Restoring it on a node that sees
+ * the same file system, like the controller itself, doesn't copy the contents: the whole tree is cloned with reflinks
+ * where the file system supports them, otherwise files are copied. Files can be hard-linked instead if
+ * {@link CloneWorkspaceSCM.DescriptorImpl#isHardLinkUnpacked()} says so, and are then copied only if that fails
+ * (typically when the workspace is on another file system). Hard-linked files share their contents with the snapshot,
+ * which is why they stay read-only in the workspace; a build making one writable and modifying it in place modifies
+ * the snapshot too, which is why it takes an explicit opt-in. Other nodes get the files transferred like any other snapshot.
+ */
+final class UnpackedTree {
+
+    private UnpackedTree() {
+    }
+
+    /**
+     * Copies the files selected by the scanner into the given directory, and makes them read-only.
+     *
+     * @return what was copied, with the modes the files had in the workspace.
+     */
+    static SnapshotManifest publish(FilePath ws, DirScanner scanner, File tree) throws IOException, InterruptedException {
+        if (tree.exists()) {
+            Util.deleteRecursive(tree);
+        }
+        Files.deleteIfExists(getIdFile(tree).toPath());
+        ws.copyRecursiveTo(scanner, new FilePath(tree), "workspace");
+
+        final List<SnapshotManifest.Entry> entries = new ArrayList<SnapshotManifest.Entry>();
+        new DirScanner.Full().scan(tree, new FileVisitor() {
+            @Override
+            public boolean understandsSymlink() {
+                return true;
+            }
+
+            @Override
+            public void visitSymlink(File link, String target, String relativePath) {
+                entries.add(SnapshotManifest.Entry.symlink(relativePath.replace('\\', '/'), target));
+            }
+
+            @Override
+            public void visit(File f, String relativePath) throws IOException {
+                int mode = IOUtils.mode(f);
+                entries.add(SnapshotManifest.Entry.file(relativePath.replace('\\', '/'), f.length(), f.lastModified(), mode, null));
+                if (!f.setWritable(false, false)) {
+                    throw new IOException("Failed to make " + f + " read-only");
+                }
+            }
+        });
+        // lets nodes tell whether they see this very tree, rather than something else at the same path
+        Files.write(getIdFile(tree).toPath(), UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+        return new SnapshotManifest(entries);
+    }
+
+    /**
+     * Restores the entries of the tree accepted by the filter into the given directory.
+     *
+     * @param filter
+     *      Null to restore everything.
+     * @return
+     *      How many entries and bytes were restored; bytes count as transferred only when they had to be
+     *      sent over to the destination rather than linked from the tree.
+     */
+    static RestorePipeline.Stats restore(File tree, SnapshotManifest manifest, FilePath dst, CloneWorkspaceSnapshot.Filter filter, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        RestorePipeline.Stats stats = new RestorePipeline.Stats();
+        SnapshotManifest selected = filter != null ? manifest.filter(filter) : manifest;
+        File idFile = getIdFile(tree);
+        String id = idFile.exists() ? new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8) : null;
+        if (id != null && dst.act(new SeesTree(idFile.getPath(), id))) {
+            Restored r = dst.act(new Link(tree.getPath(), selected, filter == null, isHardLinkEnabled()));
+            listener.getLogger().println(Messages.UnpackedTree_Linked(r.reflinked, r.linked, r.copied));
+        } else {
+            int n = new FilePath(tree).copyRecursiveTo(new EntryScanner(selected), dst, "snapshot");
+            dst.act(new Link(null, selected, false, false));
+            listener.getLogger().println(Messages.UnpackedTree_Transferred(n));
+            stats.transferBytes = selected.getTotalSize();
+        }
+        stats.entries = selected.size();
+        stats.writeBytes = selected.getTotalSize();
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private static boolean isHardLinkEnabled() {
+        Jenkins j = Jenkins.getInstanceOrNull();
+        CloneWorkspaceSCM.DescriptorImpl d = j != null ? j.getDescriptorByType(CloneWorkspaceSCM.DescriptorImpl.class) : null;
+        return d != null && d.isHardLinkUnpacked();
+    }
+
+    /**
+     * Clones the whole tree with copy-on-write copies, if the platform and file system can do it.
+     */
+    static boolean reflink(File src, File dir) throws InterruptedException {
+        if (Functions.isWindows()) {
+            return false;
+        }
+        try {
+            Process p = new ProcessBuilder("cp", "-R", "-P", "--reflink=always", "--preserve=mode,timestamps",
+                    src.getPath() + "/.", dir.getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            return p.waitFor() == 0;
+        } catch (IOException e) {
+            return false; // no cp
+        }
+    }
+
+    private static File getIdFile(File tree) {
+        return new File(tree.getPath() + ".id");
+    }
+
+    /**
+     * How the files of a restore ended up in the workspace.
+     */
+    private static final class Restored implements Serializable {
+        int reflinked;
+        int linked;
+        int copied;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Tells whether the node sees the tree at the same path.
+     */
+    private static final class SeesTree extends MasterToSlaveFileCallable<Boolean> {
+        private final String idFile;
+        private final String id;
+
+        SeesTree(String idFile, String id) {
+            this.idFile = idFile;
+            this.id = id;
+        }
+
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+            File f = new File(idFile);
+            try {
+                return f.isFile() && id.equals(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Populates the workspace out of a tree on the same node. With no tree, only gives the files that were already
+     * transferred the modes they had in the original workspace, since they come out of the tree read-only.
+     */
+    private static final class Link extends MasterToSlaveFileCallable<Restored> {
+        private final String tree;
+        private final SnapshotManifest manifest;
+        private final boolean wholeTree;
+        private final boolean hardLink;
+
+        /**
+         * @param wholeTree
+         *      Whether the whole tree is restored, and so can be cloned in one go.
+         * @param hardLink
+         *      Whether files can be hard-linked rather than copied when the tree can't be cloned.
+         */
+        Link(String tree, SnapshotManifest manifest, boolean wholeTree, boolean hardLink) {
+            this.tree = tree;
+            this.manifest = manifest;
+            this.wholeTree = wholeTree;
+            this.hardLink = hardLink;
+        }
+
+        public Restored invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Restored r = new Restored();
+            if (tree == null) {
+                for (SnapshotManifest.Entry e : manifest) {
+                    if (e.isFile()) {
+                        makeWritable(WorkspaceArchiver.resolve(dir, e.getPath()), e.getMode());
+                    }
+                }
+                return r;
+            }
+            File src = new File(tree);
+            if (wholeTree && reflink(src, dir)) {
+                for (SnapshotManifest.Entry e : manifest) {
+                    if (e.isFile()) {
+                        makeWritable(WorkspaceArchiver.resolve(dir, e.getPath()), e.getMode());
+                        r.reflinked++;
+                    }
+                }
+                return r;
+            }
+
+            boolean canLink = hardLink;
+            for (SnapshotManifest.Entry e : manifest) {
+                File s = new File(src, e.getPath());
+                File d = WorkspaceArchiver.resolve(dir, e.getPath());
+                RestorePipeline.mkdirs(d.getParentFile());
+                Files.deleteIfExists(d.toPath());
+                if (e.getType() == SnapshotManifest.Entry.Type.SYMLINK) {
+                    new FilePath(d).symlinkTo(e.getLinkTarget(), TaskListener.NULL);
+                    continue;
+                }
+                if (canLink) {
+                    try {
+                        Files.createLink(d.toPath(), s.toPath());
+                        r.linked++;
+                        continue;
+                    } catch (IOException | UnsupportedOperationException x) {
+                        LOGGER.log(Level.FINE, "Failed to hard-link " + s + ", copying the rest", x);
+                        canLink = false;
+                    }
+                }
+                Files.copy(s.toPath(), d.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                makeWritable(d, e.getMode());
+                r.copied++;
+            }
+            return r;
+        }
+
+        private static void makeWritable(File f, int mode) throws IOException, InterruptedException {
+            if (mode != -1) {
+                RestorePipeline.chmod(f, mode);
+            } else {
+                f.setWritable(true);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * {@link DirScanner} selecting the files and symlinks of a manifest.
+     */
+    private static final class EntryScanner extends DirScanner {
+        private final List<String> paths = new ArrayList<String>();
+
+        EntryScanner(SnapshotManifest manifest) {
+            for (SnapshotManifest.Entry e : manifest) {
+                if (e.getType() != SnapshotManifest.Entry.Type.DIRECTORY) {
+                    paths.add(e.getPath());
+                }
+            }
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : paths) {
+                scanSingle(new File(dir, path), path, visitor);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(UnpackedTree.class.getName());
+}
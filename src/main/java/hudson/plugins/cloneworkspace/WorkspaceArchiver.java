@@ -0,0 +1,896 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.cloneworkspace;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+/**
+ * Writes and reads the "TAR", "TARZSTD", "TARLZ4" and "ZIP" snapshot archives, keeping track of every entry on the way.
+ *
+ * <p>
+ * This does the same job as {@link FilePath#tar(OutputStream, DirScanner)} and {@link FilePath#untar(FilePath, FilePath.TarCompression)}
+ * (and their zip counterparts), except that writing an archive also yields its {@link SnapshotManifest}, and reading one back
+ * can skip the entries that aren't wanted. The archive itself is compressed and stored wherever the caller's stream goes;
+ * the work on the files happens on the node they live on, through a {@link RestorePipeline} when extracting.
+ *
+ * <p>
+ * Each file is checksummed as it's streamed into the archive, and the checksums end up in the manifest. Given that
+ * manifest, extracting checks every file against its checksum as it's written, and that none is missing.
+ */
+final class WorkspaceArchiver {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Highest compression level of the LZ4 high compression mode.
+     */
+    private static final int LZ4_MAX_LEVEL = 17;
+
+    private WorkspaceArchiver() {
+    }
+
+    /**
+     * Tells whether the given archive method produces a tar file, as opposed to a zip file.
+     */
+    static boolean isTar(String method) {
+        return "TAR".equals(method) || "TARZSTD".equals(method) || "TARLZ4".equals(method);
+    }
+
+    /**
+     * Tells whether the given archive method takes a compression level.
+     */
+    static boolean hasLevels(String method) {
+        return "TARZSTD".equals(method) || "TARLZ4".equals(method);
+    }
+
+    /**
+     * Lowest compression level the method takes, besides 0 for its default one.
+     */
+    static int minLevel(String method) {
+        if ("TARZSTD".equals(method)) {
+            return Zstd.minCompressionLevel();
+        }
+        return "TARLZ4".equals(method) ? 1 : 0;
+    }
+
+    /**
+     * Highest compression level the method takes.
+     */
+    static int maxLevel(String method) {
+        if ("TARZSTD".equals(method)) {
+            return Zstd.maxCompressionLevel();
+        }
+        return "TARLZ4".equals(method) ? LZ4_MAX_LEVEL : 0;
+    }
+
+    /**
+     * Brings the compression level within the range the method takes, 0 staying the default level of each.
+     */
+    static int clampLevel(String method, int level) {
+        if (level == 0) {
+            return 0;
+        }
+        return Math.max(minLevel(method), Math.min(level, maxLevel(method)));
+    }
+
+    /**
+     * Archives the files selected by the scanner into the given stream.
+     *
+     * @param method
+     *      "TAR" for an (uncompressed) tar stream, "TARZSTD" or "TARLZ4" for a tar stream compressed with Zstandard or LZ4,
+     *      or "ZIP". Zstandard and LZ4 compression happens on the node the workspace lives on.
+     * @param level
+     *      Compression level for "TARZSTD" and "TARLZ4", or 0 for the default one. Brought within the range
+     *      of the method (see {@link #clampLevel}) if it's outside of it.
+     * @return what was archived.
+     */
+    static Archived archive(FilePath ws, DirScanner scanner, String method, int level, OutputStream out) throws IOException, InterruptedException {
+        Archived archived = ws.act(new Archive(scanner, method, level, new RemoteOutputStream(out)));
+        CloneWorkspaceUtil.syncIO(ws);
+        return archived;
+    }
+
+    /**
+     * Extracts the archive into the given directory.
+     *
+     * @param method
+     *      "TAR" for a gzipped tar file, "TARZSTD" or "TARLZ4" for a tar file compressed with Zstandard or LZ4, or "ZIP".
+     * @param filter
+     *      Entries to extract, or null for all of them.
+     * @param manifest
+     *      Manifest of the archive, to verify what's extracted against, or null not to.
+     * @return how each stage of the restore went.
+     */
+    static RestorePipeline.Stats extract(FilePath archive, String method, FilePath dst, CloneWorkspaceSnapshot.Filter filter, SnapshotManifest manifest) throws IOException, InterruptedException {
+        return extract(archive, method, dst, filter, manifest, restoreThreads());
+    }
+
+    /**
+     * @param threads
+     *      How many threads write the files.
+     */
+    static RestorePipeline.Stats extract(FilePath archive, String method, FilePath dst, CloneWorkspaceSnapshot.Filter filter, SnapshotManifest manifest, int threads) throws IOException, InterruptedException {
+        SnapshotManifest expected = expected(manifest, filter);
+        if (archive.getChannel() == dst.getChannel()) {
+            return dst.act(new Extract(null, archive.getRemote(), method, filter, null, expected, threads));
+        }
+        try (InputStream in = archive.read()) {
+            return dst.act(new Extract(new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY), null, method, filter, null, expected, threads));
+        }
+    }
+
+    /**
+     * Extracts the entries accepted by the filter out of a "TAR" archive on the controller, only reading
+     * and sending over the parts of the archive the index says they're in.
+     */
+    static RestorePipeline.Stats extract(File archive, ArchiveIndex.Selection selection, FilePath dst, CloneWorkspaceSnapshot.Filter filter, SnapshotManifest manifest) throws IOException, InterruptedException {
+        try (InputStream in = new RangeInputStream(archive, selection.getRanges())) {
+            return dst.act(new Extract(new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY), null, "TAR", filter, selection.getSegments(),
+                expected(manifest, filter), restoreThreads()));
+        }
+    }
+
+    /**
+     * Extracts the entries accepted by the filter out of a "ZIP" archive on the controller. The central directory
+     * of the archive tells where they are, and they're sent over still compressed.
+     */
+    static RestorePipeline.Stats extractZip(final File archive, FilePath dst, final CloneWorkspaceSnapshot.Filter filter, SnapshotManifest manifest) throws IOException, InterruptedException {
+        final FastPipedInputStream in = new FastPipedInputStream();
+        final FastPipedOutputStream out = new FastPipedOutputStream(in);
+        Future<Void> writer = Computer.threadPoolForRemoting.submit(() -> {
+            try (ZipFile zf = new ZipFile(archive);
+                 ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new BufferedOutputStream(out, BUFFER_SIZE))) {
+                for (ZipArchiveEntry ze : Collections.list(zf.getEntriesInPhysicalOrder())) {
+                    if (filter.accept(toPath(ze.getName()))) {
+                        zip.addRawArchiveEntry(ze, zf.getRawInputStream(ze));
+                    }
+                }
+                zip.finish();
+            }
+            return null;
+        });
+        RestorePipeline.Stats stats;
+        try {
+            stats = dst.act(new Extract(new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY), null, "ZIP", filter, null,
+                expected(manifest, filter), restoreThreads()));
+        } finally {
+            in.close(); // unblocks the writer if the extraction failed
+        }
+        try {
+            writer.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read " + archive, e.getCause());
+        }
+        return stats;
+    }
+
+    /**
+     * The entries of the manifest that are going to be extracted, if it has checksums to verify them against.
+     */
+    private static SnapshotManifest expected(SnapshotManifest manifest, CloneWorkspaceSnapshot.Filter filter) {
+        if (manifest == null) {
+            return null;
+        }
+        boolean checksummed = false;
+        for (SnapshotManifest.Entry e : manifest) {
+            if (e.isFile()) {
+                if (e.getChecksum() == -1) {
+                    return null; // written before checksums were recorded
+                }
+                checksummed = true;
+            }
+        }
+        if (!checksummed) {
+            return null;
+        }
+        return filter != null ? manifest.filter(filter) : manifest;
+    }
+
+    /**
+     * How many threads write the files of a restore, as configured globally.
+     */
+    private static int restoreThreads() {
+        return CloneWorkspaceSCM.DescriptorImpl.get().getRestoreThreads();
+    }
+
+    /**
+     * Resolves an entry name against the directory it's extracted into, refusing the ones that would escape it.
+     */
+    static File resolve(File dir, String path) throws IOException {
+        File f = new File(dir, path);
+        if (!f.toPath().normalize().startsWith(dir.toPath().normalize())) {
+            throw new IOException("Refusing to extract " + path + " outside of " + dir);
+        }
+        return f;
+    }
+
+    /**
+     * Normalizes an archive entry name into a manifest path.
+     */
+    static String toPath(String entryName) {
+        String path = entryName.replace('\\', '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Wraps the stream the archive is written to into the compressor the method calls for, if any.
+     */
+    private static OutputStream compress(OutputStream out, String method, int level) throws IOException {
+        level = clampLevel(method, level);
+        if ("TARZSTD".equals(method)) {
+            ZstdOutputStream zstd = new ZstdOutputStream(out);
+            if (level != 0) {
+                zstd.setLevel(level);
+            }
+            return zstd;
+        } else if ("TARLZ4".equals(method)) {
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            LZ4Compressor compressor = level > 0
+                ? factory.highCompressor(level)
+                : factory.fastCompressor();
+            return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L, compressor,
+                XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+        } else {
+            return out;
+        }
+    }
+
+    /**
+     * Wraps the stream an archive is read from into the decompressor the method calls for, if any.
+     * "TAR" archives are made of many gzip members (see {@link ParallelGZIPOutputStream}), which
+     * {@link java.util.zip.GZIPInputStream} can stop reading after the first of, so they're read with a decoder
+     * that goes through all of them.
+     */
+    private static InputStream decompress(InputStream in, String method) throws IOException {
+        if ("TARZSTD".equals(method)) {
+            return new ZstdInputStream(in);
+        } else if ("TARLZ4".equals(method)) {
+            return new LZ4FrameInputStream(in);
+        } else if ("TAR".equals(method)) {
+            return new GzipCompressorInputStream(new BufferedInputStream(in, BUFFER_SIZE), true);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * Copies exactly {@code size} bytes of the file, so that the archive stays consistent with the header we wrote for it
+     * even if the file is being modified under us.
+     *
+     * @return the checksum of what was copied.
+     */
+    private static long copy(File f, long size, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        Checksum crc = SnapshotManifest.newChecksum();
+        long remaining = size;
+        try (InputStream in = new FileInputStream(f)) {
+            while (remaining > 0) {
+                int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (len < 0) {
+                    throw new IOException(f + " shrank while it was being archived");
+                }
+                crc.update(buf, 0, len);
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the given ranges of a file one after the other.
+     */
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long[] ranges;
+        private int range;
+        private long position;
+        private InputStream current;
+
+        RangeInputStream(File file, long[] ranges) throws IOException {
+            this.channel = FileChannel.open(file.toPath());
+            this.ranges = ranges;
+            this.position = ranges.length > 0 ? ranges[0] : 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (range < ranges.length) {
+                long remaining = ranges[range + 1] - position;
+                if (remaining <= 0) {
+                    range += 2;
+                    if (range < ranges.length) {
+                        position = ranges[range];
+                    }
+                    continue;
+                }
+                if (current == null) {
+                    current = Channels.newInputStream(channel);
+                }
+                channel.position(position);
+                int n = current.read(b, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("Archive is shorter than its index says");
+                }
+                position += n;
+                return n;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Only lets through the given segments of a stream, skipping everything else.
+     */
+    private static final class SegmentInputStream extends InputStream {
+        private final InputStream in;
+        private final long[] segments;
+        private int segment;
+        private long position;
+
+        SegmentInputStream(InputStream in, long[] segments) {
+            this.in = in;
+            this.segments = segments;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (segment < segments.length && position >= segments[segment + 1]) {
+                segment += 2;
+            }
+            if (segment >= segments.length) {
+                return -1;
+            }
+            if (position < segments[segment]) {
+                IOUtils.skip(in, segments[segment] - position);
+                position = segments[segment];
+            }
+            int n = in.read(b, off, (int) Math.min(len, segments[segment + 1] - position));
+            if (n < 0) {
+                throw new EOFException("Archive is shorter than its index says");
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the archive entries, and remembers them.
+     */
+    private abstract static class Writer extends FileVisitor {
+        final List<SnapshotManifest.Entry> entries = new ArrayList<SnapshotManifest.Entry>();
+        final List<Long> offsets = new ArrayList<Long>();
+
+        @Override
+        public void visit(File f, String relativePath) throws IOException {
+            String path = relativePath.replace('\\', '/');
+            int mode = IOUtils.mode(f);
+            offsets.add(position());
+            if (f.isDirectory()) {
+                SnapshotManifest.Entry e = SnapshotManifest.Entry.directory(path, f.lastModified(), mode);
+                writeDirectory(e);
+                entries.add(e);
+            } else {
+                SnapshotManifest.Entry e = SnapshotManifest.Entry.file(path, f.length(), f.lastModified(), mode, null);
+                entries.add(e.withChecksum(writeFile(e, f)));
+            }
+        }
+
+        /**
+         * Offset in the archive the next entry will be written at, or -1 if unknown.
+         */
+        abstract long position();
+
+        abstract void writeDirectory(SnapshotManifest.Entry e) throws IOException;
+
+        /**
+         * @return the checksum of the contents written.
+         */
+        abstract long writeFile(SnapshotManifest.Entry e, File f) throws IOException;
+
+        abstract void finish() throws IOException;
+
+        /**
+         * Offset of each entry in the archive, followed by the end of the last one, or null if they aren't known.
+         */
+        long[] getOffsets() {
+            long[] a = new long[offsets.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = offsets.get(i);
+                if (a[i] < 0) {
+                    return null;
+                }
+            }
+            return a;
+        }
+    }
+
+    private static final class TarWriter extends Writer {
+        private final CountingOutputStream counter;
+        private final TarArchiveOutputStream tar;
+
+        TarWriter(OutputStream out) {
+            counter = new CountingOutputStream(out);
+            // one record per block, so that nothing is left buffered between entries and the counter knows where they start
+            tar = new TarArchiveOutputStream(counter, TarConstants.DEFAULT_RCDSIZE);
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        }
+
+        @Override
+        public boolean understandsSymlink() {
+            return true;
+        }
+
+        @Override
+        public void visitSymlink(File link, String target, String relativePath) throws IOException {
+            SnapshotManifest.Entry e = SnapshotManifest.Entry.symlink(relativePath.replace('\\', '/'), target);
+            offsets.add(position());
+            TarArchiveEntry te = new TarArchiveEntry(e.getPath(), TarConstants.LF_SYMLINK);
+            te.setLinkName(target);
+            tar.putArchiveEntry(te);
+            tar.closeArchiveEntry();
+            entries.add(e);
+        }
+
+        @Override
+        void writeDirectory(SnapshotManifest.Entry e) throws IOException {
+            TarArchiveEntry te = new TarArchiveEntry(e.getPath() + '/');
+            te.setModTime(e.getLastModified());
+            if (e.getMode() != -1) {
+                te.setMode(e.getMode());
+            }
+            tar.putArchiveEntry(te);
+            tar.closeArchiveEntry();
+        }
+
+        @Override
+        long writeFile(SnapshotManifest.Entry e, File f) throws IOException {
+            TarArchiveEntry te = new TarArchiveEntry(e.getPath());
+            te.setSize(e.getSize());
+            te.setModTime(e.getLastModified());
+            if (e.getMode() != -1) {
+                te.setMode(e.getMode());
+            }
+            tar.putArchiveEntry(te);
+            long checksum = copy(f, e.getSize(), tar);
+            tar.closeArchiveEntry();
+            return checksum;
+        }
+
+        @Override
+        long position() {
+            return counter.getByteCount();
+        }
+
+        @Override
+        void finish() throws IOException {
+            offsets.add(position());
+            tar.finish();
+        }
+    }
+
+    private static final class ZipWriter extends Writer {
+        private final ZipArchiveOutputStream zip;
+
+        ZipWriter(OutputStream out) {
+            zip = new ZipArchiveOutputStream(out);
+        }
+
+        @Override
+        void writeDirectory(SnapshotManifest.Entry e) throws IOException {
+            ZipArchiveEntry ze = new ZipArchiveEntry(e.getPath() + '/');
+            ze.setTime(e.getLastModified());
+            if (e.getMode() != -1) {
+                ze.setUnixMode(e.getMode());
+            }
+            zip.putArchiveEntry(ze);
+            zip.closeArchiveEntry();
+        }
+
+        @Override
+        long writeFile(SnapshotManifest.Entry e, File f) throws IOException {
+            ZipArchiveEntry ze = new ZipArchiveEntry(e.getPath());
+            ze.setSize(e.getSize());
+            ze.setTime(e.getLastModified());
+            if (e.getMode() != -1) {
+                ze.setUnixMode(e.getMode());
+            }
+            zip.putArchiveEntry(ze);
+            long checksum = copy(f, e.getSize(), zip);
+            zip.closeArchiveEntry();
+            return checksum;
+        }
+
+        @Override
+        long position() {
+            return -1;
+        }
+
+        @Override
+        void finish() throws IOException {
+            zip.finish();
+        }
+    }
+
+    /**
+     * What {@link #archive} wrote.
+     */
+    static final class Archived implements Serializable {
+        final SnapshotManifest manifest;
+        /**
+         * Offset of each entry of the manifest in the uncompressed tar stream, followed by its end.
+         * Null for zip archives.
+         */
+        final long[] offsets;
+
+        /**
+         * Time spent walking the workspace, reading and packing the files (compressing them too, if that happens
+         * on the node), and waiting for the archive to be sent over.
+         */
+        long scanNanos, packNanos, transferNanos;
+
+        Archived(SnapshotManifest manifest, long[] offsets) {
+            this.manifest = manifest;
+            this.offsets = offsets;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Archive extends MasterToSlaveFileCallable<Archived> {
+        private final DirScanner scanner;
+        private final String method;
+        private final int level;
+        private final RemoteOutputStream out;
+
+        Archive(DirScanner scanner, String method, int level, RemoteOutputStream out) {
+            this.scanner = scanner;
+            this.method = method;
+            this.level = level;
+            this.out = out;
+        }
+
+        public Archived invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            TimedOutputStream transfer = new TimedOutputStream(out);
+            Archived archived;
+            TimedVisitor visitor;
+            try (OutputStream os = new BufferedOutputStream(compress(transfer, method, level), BUFFER_SIZE)) {
+                Writer writer = isTar(method) ? new TarWriter(os) : new ZipWriter(os);
+                visitor = new TimedVisitor(writer);
+                scanner.scan(dir, visitor);
+                writer.finish();
+                archived = new Archived(new SnapshotManifest(writer.entries), writer.getOffsets());
+            }
+            long elapsed = System.nanoTime() - start;
+            archived.transferNanos = transfer.getNanos();
+            archived.scanNanos = Math.max(0, elapsed - visitor.nanos);
+            archived.packNanos = Math.max(0, elapsed - archived.scanNanos - archived.transferNanos);
+            return archived;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Keeps track of the time spent handling the files the scanner finds, as opposed to finding them.
+     */
+    private static final class TimedVisitor extends FileVisitor {
+        private final FileVisitor visitor;
+        long nanos;
+
+        TimedVisitor(FileVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void visit(File f, String relativePath) throws IOException {
+            long start = System.nanoTime();
+            try {
+                visitor.visit(f, relativePath);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void visitSymlink(File link, String target, String relativePath) throws IOException {
+            long start = System.nanoTime();
+            try {
+                visitor.visitSymlink(link, target, relativePath);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public boolean understandsSymlink() {
+            return visitor.understandsSymlink();
+        }
+    }
+
+    /**
+     * Keeps track of the time spent writing to a stream.
+     */
+    static final class TimedOutputStream extends FilterOutputStream {
+        private long nanos;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+
+    private static final class Extract extends MasterToSlaveFileCallable<RestorePipeline.Stats> {
+        private final RemoteInputStream in;
+        private final String localArchive;
+        private final String method;
+        private final CloneWorkspaceSnapshot.Filter filter;
+        private final long[] segments;
+        private final SnapshotManifest expected;
+        private final int threads;
+
+        /**
+         * @param in
+         *      Stream to read the archive from, or null to read {@code localArchive} from the node we're running on.
+         * @param segments
+         *      For a partial tar archive, the start and end offsets of the parts of the decompressed stream to keep.
+         * @param expected
+         *      Entries that are going to be extracted, with the checksums of the files, or null not to verify them.
+         * @param threads
+         *      How many threads write the files.
+         */
+        Extract(RemoteInputStream in, String localArchive, String method, CloneWorkspaceSnapshot.Filter filter, long[] segments,
+                SnapshotManifest expected, int threads) {
+            this.in = in;
+            this.localArchive = localArchive;
+            this.method = method;
+            this.filter = filter;
+            this.segments = segments;
+            this.expected = expected;
+            this.threads = threads;
+        }
+
+        public RestorePipeline.Stats invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            RestorePipeline.Stats stats = new RestorePipeline.Stats();
+            // directory modes are applied at the end, in case they don't let us write into them
+            Map<File,Integer> directoryModes = new LinkedHashMap<File,Integer>();
+            Set<String> extracted = new HashSet<String>();
+            try (RestorePipeline.Transfer transfer = new RestorePipeline.Transfer(in != null ? in : new FileInputStream(localArchive));
+                 RestorePipeline.DiskWriter disk = new RestorePipeline.DiskWriter(threads)) {
+                if (isTar(method)) {
+                    InputStream tar = new BufferedInputStream(decompress(transfer, method), BUFFER_SIZE);
+                    if (segments != null) {
+                        // followed by the end of archive marker, which wasn't part of any entry
+                        tar = new SequenceInputStream(new SegmentInputStream(tar, segments),
+                            new ByteArrayInputStream(new byte[2 * TarConstants.DEFAULT_RCDSIZE]));
+                    }
+                    extractTar(new TarArchiveInputStream(tar), dir, directoryModes, extracted, disk);
+                } else {
+                    extractZip(new ZipArchiveInputStream(transfer), dir, directoryModes, extracted, disk);
+                }
+                disk.finish();
+                checkComplete(extracted);
+                transfer.record(stats);
+                disk.record(stats);
+                stats.elapsedNanos = System.nanoTime() - start;
+                stats.decompressionNanos = Math.max(0, stats.elapsedNanos - transfer.getWaitNanos() - disk.getWaitNanos());
+            }
+            List<File> directories = new ArrayList<File>(directoryModes.keySet());
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                File d = directories.get(i);
+                RestorePipeline.chmod(d, directoryModes.get(d));
+            }
+            return stats;
+        }
+
+        /**
+         * Makes sure that no file the manifest lists went missing from the archive.
+         */
+        private void checkComplete(Set<String> extracted) throws IOException {
+            if (expected == null) {
+                return;
+            }
+            for (SnapshotManifest.Entry e : expected) {
+                if (e.isFile() && !extracted.contains(e.getPath())) {
+                    throw new IOException("The archive is truncated or corrupted: " + e.getPath() + " is missing from it");
+                }
+            }
+        }
+
+        /**
+         * Checksum the given file of the archive is expected to have, or -1 if it isn't known.
+         */
+        private long checksum(String path) {
+            SnapshotManifest.Entry e = expected != null ? expected.get(path) : null;
+            return e != null ? e.getChecksum() : -1;
+        }
+
+        private void extractTar(TarArchiveInputStream tar, File dir, Map<File,Integer> directoryModes, Set<String> extracted, RestorePipeline.DiskWriter disk) throws IOException, InterruptedException {
+            TarArchiveEntry te;
+            while ((te = tar.getNextTarEntry()) != null) {
+                String path = toPath(te.getName());
+                if (path.isEmpty() || (filter != null && !filter.accept(path))) {
+                    continue;
+                }
+                File f = resolve(dir, path);
+                if (te.isDirectory()) {
+                    disk.mkdirs(f);
+                    directoryModes.put(f, te.getMode());
+                } else if (te.isSymbolicLink()) {
+                    disk.symlink(f, te.getLinkName());
+                } else if (te.isFile()) {
+                    disk.write(f, tar, te.getModTime().getTime(), te.getMode(), checksum(path));
+                    extracted.add(path);
+                }
+            }
+        }
+
+        private void extractZip(ZipArchiveInputStream zip, File dir, Map<File,Integer> directoryModes, Set<String> extracted, RestorePipeline.DiskWriter disk) throws IOException, InterruptedException {
+            ZipArchiveEntry ze;
+            while ((ze = zip.getNextZipEntry()) != null) {
+                String path = toPath(ze.getName());
+                if (path.isEmpty() || (filter != null && !filter.accept(path))) {
+                    continue;
+                }
+                if (!zip.canReadEntryData(ze)) {
+                    throw new IOException("Unsupported zip entry " + ze.getName());
+                }
+                File f = resolve(dir, path);
+                if (ze.isDirectory()) {
+                    disk.mkdirs(f);
+                    directoryModes.put(f, ze.getUnixMode());
+                } else if (ze.isUnixSymlink()) {
+                    ByteArrayOutputStream target = new ByteArrayOutputStream();
+                    zip.transferTo(target);
+                    disk.symlink(f, target.toString(StandardCharsets.UTF_8));
+                } else {
+                    disk.write(f, zip, ze.getTime(), ze.getUnixMode(), checksum(path));
+                    extracted.add(path);
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
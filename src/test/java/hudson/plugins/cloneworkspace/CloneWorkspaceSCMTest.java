@@ -24,24 +24,61 @@
 package hudson.plugins.cloneworkspace;
 
 import hudson.FilePath;
-
+import hudson.Launcher;
+import hudson.WorkspaceSnapshot;
+
+import hudson.matrix.AxisList;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
+import hudson.model.Cause;
+import hudson.model.Failure;
 import hudson.model.FreeStyleProject;
 import hudson.model.FreeStyleBuild;
+import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.model.User;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.ExtractResourceWithChangesSCM;
 import org.jvnet.hudson.test.ExtractChangeLogParser;
 import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.UnstableBuilder;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.security.access.AccessDeniedException;
 
 
 public class CloneWorkspaceSCMTest extends HudsonTestCase {
@@ -75,6 +112,44 @@ public class CloneWorkspaceSCMTest extends HudsonTestCase {
         FilePath ws = fb.getWorkspace();
 
         assertTrue("pom.xml should exist", ws.child("pom.xml").exists());
+        assertLogContains("Transfer: ", fb);
+        assertLogContains("Disk writes: ", fb);
+    }
+
+    public void testAgentCacheCloning() throws Exception {
+        CloneWorkspaceSCM.DescriptorImpl.get().setAgentCacheSize(100);
+        FreeStyleProject parentJob = createCloneParentProject();
+        buildAndAssertSuccess(parentJob);
+
+        Label agent = createSlave(Label.get("childSlave")).getSelfLabel();
+        FreeStyleProject childJob = createCloneChildProject();
+        childJob.setAssignedLabel(agent);
+        buildAndAssertSuccess(childJob);
+
+        FreeStyleProject otherChildJob = createCloneChildProject();
+        otherChildJob.setAssignedLabel(agent);
+        FreeStyleBuild b = buildAndAssertSuccess(otherChildJob);
+        assertLogContains("cached on this agent", b);
+        assertTrue("pom.xml should exist", b.getWorkspace().child("pom.xml").exists());
+    }
+
+    public void testParallelRestore() throws Exception {
+        CloneWorkspaceSCM.DescriptorImpl.get().setRestoreThreads(4);
+        FreeStyleProject parentJob = createCloneParentProject();
+        FilePath parentWs = buildAndAssertSuccess(parentJob).getWorkspace();
+
+        FreeStyleProject childJob = createCloneChildProject();
+        FreeStyleBuild b = buildAndAssertSuccess(childJob);
+        assertLogContains("on 4 threads", b);
+
+        FilePath ws = b.getWorkspace();
+        for (FilePath f : parentWs.list("**/*")) {
+            FilePath restored = ws.child(f.getRemote().substring(parentWs.getRemote().length() + 1));
+            assertTrue(restored + " should exist", restored.exists());
+            assertEquals(f.readToString(), restored.readToString());
+            assertEquals(f.lastModified() / 1000, restored.lastModified() / 1000);
+            assertEquals(f.mode(), restored.mode());
+        }
     }
 
     public void testGlobCloning() throws Exception {
@@ -93,6 +168,655 @@ public class CloneWorkspaceSCMTest extends HudsonTestCase {
         assertTrue("moduleB/pom.xml should exist", ws.child("moduleB").child("pom.xml").exists());
     }
 
+    public void testParallelCompressionCloning() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false);
+        cwp.setCompressionThreads(4);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        assertLogContains("using 4 threads", buildAndAssertSuccess(parentJob));
+
+        FreeStyleProject childJob = createCloneChildProject();
+        buildAndAssertSuccess(childJob);
+
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB").child("pom.xml").exists());
+    }
+
+    public void testMultiMemberTarRestore() throws Exception {
+        File src = createTmpDir();
+        byte[] big = new byte[3 * 1024 * 1024 + 12345];
+        new Random(42).nextBytes(big);
+        Files.write(new File(src, "big.bin").toPath(), big);
+        for (int i = 0; i < 100; i++) {
+            Files.write(new File(src, "small" + i + ".txt").toPath(), ("file " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // small blocks, so that the archive is made of many gzip members, with entries spanning several of them
+        File archive = new File(createTmpDir(), "workspace.tar.gz");
+        SnapshotManifest manifest;
+        try (OutputStream f = new FileOutputStream(archive);
+             ParallelGZIPOutputStream gz = new ParallelGZIPOutputStream(f, 2, 64 * 1024);
+             OutputStream os = new BufferedOutputStream(gz)) {
+            manifest = WorkspaceArchiver.archive(new FilePath(src), new DirScanner.Full(), "TAR", 0, os).manifest;
+            os.close();
+            assertTrue(gz.getBlockOffsets().length > 10);
+        }
+
+        FilePath dst = new FilePath(createTmpDir());
+        WorkspaceArchiver.extract(new FilePath(archive), "TAR", dst, null, manifest, 2);
+        assertTrue(Arrays.equals(big, Files.readAllBytes(new File(dst.getRemote(), "big.bin").toPath())));
+        assertEquals("file 99", dst.child("small99.txt").readToString());
+    }
+
+    public void testParallelScanCloning() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*.xml", "moduleA/**", "Any", "TAR", false);
+        cwp.setScanThreads(4);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        FilePath parentWs = buildAndAssertSuccess(parentJob).getWorkspace();
+
+        FreeStyleProject childJob = createCloneChildProject();
+        FilePath ws = buildAndAssertSuccess(childJob).getWorkspace();
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB/pom.xml").exists());
+        assertFalse("moduleA should be excluded", ws.child("moduleA").exists());
+        assertEquals(0, ws.list("**/*.java").length);
+
+        // same files as a single-threaded scan, always in the same order
+        List<String> expected = scannedPaths(parentWs, new DirScanner.Glob("**/*", "moduleA/**", true));
+        List<String> paths = scannedPaths(parentWs, new ParallelDirScanner("**/*", "moduleA/**", true, 4));
+        assertEquals(new HashSet<String>(expected), new HashSet<String>(paths));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(paths, scannedPaths(parentWs, new ParallelDirScanner("**/*", "moduleA/**", true, 4)));
+        }
+    }
+
+    private static List<String> scannedPaths(FilePath ws, DirScanner scanner) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        for (SnapshotManifest.Entry e : SnapshotManifest.scan(ws, scanner)) {
+            paths.add(e.getPath());
+        }
+        return paths;
+    }
+
+    public void testFilteredCloning() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        buildAndAssertSuccess(parentJob);
+
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Any");
+        scm.setIncludes("moduleB/**");
+        scm.setExcludes("**/*.java");
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        buildAndAssertSuccess(childJob);
+
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB").child("pom.xml").exists());
+        assertFalse("pom.xml should not exist", ws.child("pom.xml").exists());
+        assertTrue("No Java sources should have been restored", ws.list("**/*.java").length == 0);
+    }
+
+    public void testIndexedPartialRestore() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false));
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+        assertTrue(new File(parent.getRootDir(), CloneWorkspaceUtil.INDEX_FILE_NAME).exists());
+
+        FilePath dst = new FilePath(createTmpDir());
+        CloneWorkspaceSnapshot snapshot = parent.getAction(CloneWorkspaceSnapshot.class);
+        snapshot.restoreTo(parent, dst, CloneWorkspaceSnapshot.only(Set.of("moduleB", "moduleB/pom.xml")), createTaskListener());
+
+        assertTrue("moduleB/pom.xml should exist", dst.child("moduleB").child("pom.xml").exists());
+        assertFalse("pom.xml should not exist", dst.child("pom.xml").exists());
+    }
+
+    public void testZstdCloning() throws Exception {
+        assertCompressedTarCloning("TARZSTD");
+    }
+
+    public void testLz4Cloning() throws Exception {
+        assertCompressedTarCloning("TARLZ4");
+    }
+
+    public void testCompressionLevelRange() throws Exception {
+        CloneWorkspacePublisher.DescriptorImpl descriptor = jenkins.getDescriptorByType(CloneWorkspacePublisher.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckCompressionLevel("TARLZ4", "17").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("TARLZ4", "18").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("TARLZ4", "-1").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckCompressionLevel("TARZSTD", "-1").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("TARZSTD", "23").kind);
+        assertEquals(FormValidation.Kind.WARNING, descriptor.doCheckCompressionLevel("TAR", "5").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("TARZSTD", "fast").kind);
+
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TARZSTD", false);
+        cwp.setCompressionLevel(100);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        assertLogContains("using " + WorkspaceArchiver.maxLevel("TARZSTD") + " instead", buildAndAssertSuccess(parentJob));
+    }
+
+    private void assertCompressedTarCloning(String archiveMethod) throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", archiveMethod, false);
+        cwp.setCompressionLevel(5);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        buildAndAssertSuccess(parentJob);
+        assertTrue(new File(parentJob.getLastBuild().getRootDir(), CloneWorkspaceUtil.getFileNameForMethod(archiveMethod)).exists());
+
+        FreeStyleProject childJob = createCloneChildProject();
+        buildAndAssertSuccess(childJob);
+
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB").child("pom.xml").exists());
+    }
+
+    public void testDedupCloning() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "DEDUP", false));
+        buildAndAssertSuccess(parentJob);
+        buildAndAssertSuccess(parentJob);
+
+        FreeStyleProject childJob = createCloneChildProject();
+        buildAndAssertSuccess(childJob);
+
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+
+        assertTrue("pom.xml should exist", ws.child("pom.xml").exists());
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB").child("pom.xml").exists());
+
+        SnapshotReaper.get().reap("parentJob", TaskListener.NULL);
+        File[] manifests = new File(SnapshotStore.get().getRootDir(), "manifests").listFiles();
+        assertEquals("Only the most recent snapshot should be kept", 1, manifests.length);
+    }
+
+    public void testDedupFileChangedAfterScan() throws Exception {
+        File src = createTmpDir();
+        Files.write(new File(src, "grows.txt").toPath(), "short".getBytes(StandardCharsets.UTF_8));
+        SnapshotStore store = new SnapshotStore(createTmpDir());
+        String id = store.publish(new FilePath(src), new GrowingScanner(), null, createTaskListener());
+
+        SnapshotManifest.Entry e = store.getManifest(id).get("grows.txt");
+        assertEquals(GrowingScanner.CONTENTS.length(), e.getSize());
+        FilePath dst = new FilePath(createTmpDir());
+        store.restore(id, dst, null);
+        assertEquals(GrowingScanner.CONTENTS, dst.child("grows.txt").readToString());
+    }
+
+    public void testDedupOnlyChangedFilesUploaded() throws Exception {
+        File src = createTmpDir();
+        for (String dir : new String[] {"a", "b", "b/c"}) {
+            File d = new File(src, dir);
+            d.mkdirs();
+            Files.write(new File(d, "same.txt").toPath(), ("same in " + dir).getBytes(StandardCharsets.UTF_8));
+        }
+        File changes = new File(src, "b/c/changes.txt");
+        Files.write(changes.toPath(), "before".getBytes(StandardCharsets.UTF_8));
+        SnapshotStore store = new SnapshotStore(createTmpDir());
+        String first = store.publish(new FilePath(src), new DirScanner.Full(), null, createTaskListener());
+
+        Files.write(changes.toPath(), "after, and longer".getBytes(StandardCharsets.UTF_8));
+        changes.setLastModified(changes.lastModified() + 2000);
+        Files.write(new File(src, "b/c/new.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+        SnapshotManifest.Delta delta = SnapshotManifest.scan(new FilePath(src), new DirScanner.Full(), store.getManifest(first));
+        assertEquals(1, delta.getAdded().size());
+        assertEquals("b/c/new.txt", delta.getAdded().get(0).getPath());
+        assertEquals("the directories didn't change", 1, delta.getChanged().size());
+        assertEquals("b/c/changes.txt", delta.getChanged().get(0).getPath());
+
+        SnapshotMetricsAction metrics = new SnapshotMetricsAction(SnapshotMetricsAction.Kind.SNAPSHOT, null, 0, null, "DEDUP");
+        String second = store.publish(new FilePath(src), new DirScanner.Full(), first, createTaskListener(), metrics);
+        assertEquals("after, and longer".length() + "new".length(), metrics.getStoredBytes());
+        FilePath dst = new FilePath(createTmpDir());
+        store.restore(second, dst, null);
+        assertEquals("after, and longer", dst.child("b/c/changes.txt").readToString());
+        assertEquals("same in b/c", dst.child("b/c/same.txt").readToString());
+    }
+
+    /**
+     * Makes a file longer right after it's been scanned, before it's uploaded.
+     */
+    private static final class GrowingScanner extends DirScanner {
+        static final String CONTENTS = "a lot longer than it was when it was scanned";
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            new DirScanner.Full().scan(dir, visitor);
+            Files.write(new File(dir, "grows.txt").toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public void testMatrixDedup() throws Exception {
+        MatrixProject parentJob = createMatrixProject("matrixParent");
+        parentJob.setAxes(new AxisList(new TextAxis("config", "a", "b", "c")));
+        parentJob.setScm(new ExtractResourceSCM(getClass().getResource("maven-multimod.zip")));
+        parentJob.getPublishersList().add(new CloneWorkspacePublisher("**/*", null, "Any", "DEDUP", false));
+        MatrixBuild b = buildAndAssertSuccess(parentJob);
+
+        // the configurations share the contents of their identical workspaces
+        Set<String> digests = new HashSet<String>();
+        for (MatrixRun run : b.getExactRuns()) {
+            WorkspaceSnapshot snapshot = run.getAction(WorkspaceSnapshot.class);
+            assertTrue(snapshot instanceof CloneWorkspacePublisher.WorkspaceSnapshotDedup);
+            for (SnapshotManifest.Entry e : SnapshotStore.get().getManifest(((CloneWorkspacePublisher.WorkspaceSnapshotDedup) snapshot).getManifestId())) {
+                if (e.isFile()) {
+                    digests.add(e.getDigest());
+                }
+            }
+        }
+        int objects = 0;
+        for (File bucket : new File(SnapshotStore.get().getRootDir(), "objects").listFiles()) {
+            objects += bucket.list().length;
+        }
+        assertEquals(digests.size(), objects);
+    }
+
+    public void testUnpackedCloning() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "UNPACKED", false));
+        FilePath parentWs = buildAndAssertSuccess(parentJob).getWorkspace();
+
+        FreeStyleProject childJob = createCloneChildProject();
+        FreeStyleBuild b = buildAndAssertSuccess(childJob);
+        assertLogContains("Restored the unpacked snapshot in place", b);
+        FilePath ws = b.getWorkspace();
+        String pom = parentWs.child("pom.xml").readToString();
+        assertEquals(pom, ws.child("pom.xml").readToString());
+
+        // modifying a restored file in place doesn't modify the snapshot
+        File restored = new File(ws.child("pom.xml").getRemote());
+        restored.setWritable(true);
+        try (OutputStream out = new FileOutputStream(restored, true)) {
+            out.write("<!-- modified -->".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(pom, new FilePath(new File(parentJob.getLastBuild().getRootDir(), "workspace/pom.xml")).readToString());
+
+        FreeStyleProject agentChildJob = createCloneChildProject();
+        agentChildJob.setAssignedLabel(createSlave().getSelfLabel());
+        b = buildAndAssertSuccess(agentChildJob);
+        assertTrue("pom.xml should exist", b.getWorkspace().child("pom.xml").exists());
+
+        // the snapshot of the previous build is deleted along with its tree
+        FreeStyleBuild first = parentJob.getLastBuild();
+        buildAndAssertSuccess(parentJob);
+        SnapshotReaper.get().reap("parentJob", TaskListener.NULL);
+        assertFalse(new File(first.getRootDir(), "workspace").exists());
+    }
+
+    public void testSnapshotRetention() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false);
+        cwp.setRetainSnapshots(2);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        FreeStyleBuild b1 = buildAndAssertSuccess(parentJob);
+        FreeStyleBuild b2 = buildAndAssertSuccess(parentJob);
+        FreeStyleBuild b3 = buildAndAssertSuccess(parentJob);
+
+        SnapshotReaper reaper = SnapshotReaper.get();
+        reaper.reap("parentJob", TaskListener.NULL);
+        assertNull(b1.getAction(WorkspaceSnapshot.class));
+        assertFalse(new File(b1.getRootDir(), "workspace.tar.gz").exists());
+        assertNotNull(b2.getAction(WorkspaceSnapshot.class));
+        assertTrue(new File(b2.getRootDir(), "workspace.tar.gz").exists());
+
+        // leased snapshots aren't deleted
+        cwp.setRetainSnapshots(1);
+        try (SnapshotReaper.Lease lease = reaper.lease(b2)) {
+            reaper.reap("parentJob", TaskListener.NULL);
+            assertTrue(new File(b2.getRootDir(), "workspace.tar.gz").exists());
+        }
+        reaper.reap("parentJob", TaskListener.NULL);
+        assertFalse(new File(b2.getRootDir(), "workspace.tar.gz").exists());
+        assertTrue(new File(b3.getRootDir(), "workspace.tar.gz").exists());
+    }
+
+    public void testArchiveInBackground() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false);
+        cwp.setArchiveInBackground(true);
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+        assertLogContains(CloneWorkspacePublisher.BACKGROUND_LOG_FILE_NAME, parent);
+
+        // the child waits for the snapshot if it isn't archived yet
+        FreeStyleProject childJob = createCloneChildProject(new CloneWorkspaceSCM("parentJob", "Any"));
+        buildAndAssertSuccess(childJob);
+        assertTrue(childJob.getLastBuild().getWorkspace().child("pom.xml").exists());
+        assertFalse(parent.getAction(WorkspaceSnapshot.class) instanceof PendingSnapshot);
+        assertTrue(new File(parent.getRootDir(), "workspace.tar.gz").exists());
+    }
+
+    public void testBackgroundDedupKeepsTimestamps() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "DEDUP", false);
+        cwp.setArchiveInBackground(true);
+        FreeStyleProject parentJob = createFreeStyleProject("parentJob");
+        parentJob.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                for (String name : new String[] {"a.txt", "dir/b.txt"}) {
+                    FilePath f = build.getWorkspace().child(name);
+                    f.write("contents of " + name, "UTF-8");
+                    f.touch(1234567890123L); // not a whole second, which a tar would lose
+                }
+                return true;
+            }
+        });
+        parentJob.getPublishersList().add(cwp);
+        awaitSnapshot(buildAndAssertSuccess(parentJob));
+        FreeStyleBuild second = buildAndAssertSuccess(parentJob);
+        awaitSnapshot(second);
+
+        String log = new String(Files.readAllBytes(new File(second.getRootDir(), CloneWorkspacePublisher.BACKGROUND_LOG_FILE_NAME).toPath()), StandardCharsets.UTF_8);
+        assertTrue(log, log.contains(Messages.SnapshotStore_Delta(0, 0, 0, 2)));
+    }
+
+    private static void awaitSnapshot(FreeStyleBuild build) throws InterruptedException {
+        WorkspaceSnapshot snapshot = build.getAction(WorkspaceSnapshot.class);
+        if (snapshot instanceof PendingSnapshot) {
+            assertNotNull(((PendingSnapshot) snapshot).await(1, TimeUnit.MINUTES));
+        }
+    }
+
+    public void testPendingSnapshotDiscardedOnLoad() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false));
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+        parent.removeActions(WorkspaceSnapshot.class);
+        File staging = createTmpDir();
+        new File(staging, "pom.xml").createNewFile();
+        parent.addAction(new PendingSnapshot("TAR", "", staging.getPath()));
+        parent.save();
+
+        // as if Jenkins had been restarted while the snapshot was being archived
+        parent.reload();
+        for (int i = 0; i < 100 && (staging.exists() || parent.getAction(PendingSnapshot.class) != null); i++) {
+            Thread.sleep(100);
+        }
+        assertNull(parent.getAction(PendingSnapshot.class));
+        assertFalse(staging.exists());
+
+        // and children don't wait for it
+        FreeStyleProject childJob = createCloneChildProject(new CloneWorkspaceSCM("parentJob", "Any"));
+        assertNull(((CloneWorkspaceSCM) childJob.getScm()).getPendingSnapshot());
+    }
+
+    public void testNamedSnapshot() throws Exception {
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false);
+        cwp.setNamedSnapshots(Collections.singletonList(new NamedSnapshot("moduleB", "moduleB/**", null, "ZIP")));
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+        assertTrue(new File(parent.getRootDir(), "snapshots/moduleB/workspace.zip").exists());
+
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Any");
+        scm.setSnapshotName("moduleB");
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        buildAndAssertSuccess(childJob);
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+        assertTrue("moduleB/pom.xml should exist", ws.child("moduleB/pom.xml").exists());
+        assertFalse("pom.xml should not exist", ws.child("pom.xml").exists());
+
+        scm.setSnapshotName("nonexistent");
+        assertBuildStatus(Result.FAILURE, childJob.scheduleBuild2(0).get());
+    }
+
+    public void testBadSnapshotNames() throws Exception {
+        try {
+            new NamedSnapshot("..", "**/*", null, "ZIP");
+            fail("'..' should be rejected");
+        } catch (Failure e) {
+            // expected
+        }
+        CloneWorkspacePublisher cwp = new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false);
+        try {
+            cwp.setNamedSnapshots(Arrays.asList(new NamedSnapshot("a", "**/*", null, "ZIP"), new NamedSnapshot("a", "moduleB/**", null, "ZIP")));
+            fail("duplicate names should be rejected");
+        } catch (Failure e) {
+            // expected
+        }
+
+        // as if loaded from config.xml, which doesn't go through the constructor
+        NamedSnapshot ns = new NamedSnapshot("moduleB", "moduleB/**", null, "ZIP");
+        cwp.setNamedSnapshots(Collections.singletonList(ns));
+        Field name = NamedSnapshot.class.getDeclaredField("name");
+        name.setAccessible(true);
+        name.set(ns, "../../escaped");
+        FreeStyleProject parentJob = createCloneParentProject(cwp);
+        FreeStyleBuild b = assertBuildStatus(Result.FAILURE, parentJob.scheduleBuild2(0).get());
+        assertLogContains("Not archiving the workspace", b);
+        assertNull(b.getAction(WorkspaceSnapshot.class));
+        assertFalse(new File(b.getRootDir(), "../escaped").exists());
+    }
+
+    public void testMetrics() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "TAR", false));
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+        SnapshotMetricsAction snapshot = parent.getAction(SnapshotMetricsAction.class);
+        assertEquals(SnapshotMetricsAction.Kind.SNAPSHOT, snapshot.getKind());
+        assertTrue(snapshot.getEntries() > 0);
+        assertTrue(snapshot.getCompressionRatio() > 1);
+
+        FreeStyleProject childJob = createCloneChildProject();
+        SnapshotMetricsAction restore = buildAndAssertSuccess(childJob).getAction(SnapshotMetricsAction.class);
+        assertEquals(SnapshotMetricsAction.Kind.RESTORE, restore.getKind());
+        assertEquals(parent.getNumber(), restore.getParentBuildNumber());
+        assertEquals(snapshot.getRawBytes(), restore.getRawBytes());
+
+        JobSnapshotMetrics metrics = JobSnapshotMetrics.get("parentJob");
+        assertEquals(1, metrics.getSnapshots());
+        assertEquals(1, metrics.getRestores());
+        assertTrue(createWebClient().goTo("job/parentJob/cloneWorkspaceMetrics/api/json", "application/json")
+            .getWebResponse().getContentAsString().contains("\"restores\":1"));
+    }
+
+    public void testDedupRestoreMetrics() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject(new CloneWorkspacePublisher("**/*", null, "Any", "DEDUP", false));
+        buildAndAssertSuccess(parentJob);
+
+        FreeStyleProject childJob = createCloneChildProject();
+        SnapshotMetricsAction restore = buildAndAssertSuccess(childJob).getAction(SnapshotMetricsAction.class);
+        assertEquals(SnapshotMetricsAction.Kind.RESTORE, restore.getKind());
+        assertEquals("DEDUP", restore.getArchiveMethod());
+        assertTrue(restore.getEntries() > 0);
+        assertTrue(restore.getRawBytes() > 0);
+        assertTrue(restore.getStoredBytes() > 0);
+    }
+
+    public void testIncrementalRestore() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        buildAndAssertSuccess(parentJob);
+
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Any");
+        scm.setIncrementalRestore(true);
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        buildAndAssertSuccess(childJob);
+
+        FilePath ws = childJob.getLastBuild().getWorkspace();
+        ws.child("pom.xml").write("modified", "UTF-8");
+        ws.child("extra.txt").write("not in the snapshot", "UTF-8");
+
+        FreeStyleBuild b = buildAndAssertSuccess(childJob);
+        assertLogContains("keeping", b);
+        assertFalse("extra.txt should have been deleted", ws.child("extra.txt").exists());
+        assertFalse("pom.xml should have been restored", ws.child("pom.xml").readToString().equals("modified"));
+    }
+
+    public void testChecksumVerification() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        FreeStyleBuild parent = buildAndAssertSuccess(parentJob);
+
+        File manifestFile = new File(parent.getRootDir(), CloneWorkspaceUtil.MANIFEST_FILE_NAME);
+        List<SnapshotManifest.Entry> entries = new ArrayList<SnapshotManifest.Entry>();
+        for (SnapshotManifest.Entry e : SnapshotManifest.read(manifestFile)) {
+            if (e.isFile()) {
+                assertTrue(e.getPath() + " should have a checksum", e.getChecksum() != -1);
+            }
+            entries.add(e.getPath().equals("pom.xml") ? e.withChecksum(e.getChecksum() ^ 1) : e);
+        }
+        new SnapshotManifest(entries).write(manifestFile);
+
+        FreeStyleProject childJob = createCloneChildProject();
+        FreeStyleBuild b = assertBuildStatus(Result.FAILURE, childJob.scheduleBuild2(0).get());
+        assertLogContains("pom.xml doesn't match its checksum", b);
+    }
+
+    public void testTriggerOnSnapshot() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Successful");
+        scm.setTriggerOnSnapshot(true);
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        childJob.setQuietPeriod(0);
+
+        FreeStyleBuild parentBuild = buildAndAssertSuccess(parentJob);
+        waitUntilNoActivity();
+        FreeStyleBuild b = childJob.getLastBuild();
+        assertNotNull("The child should have been scheduled by the parent", b);
+        Cause.UpstreamCause cause = b.getCause(Cause.UpstreamCause.class);
+        assertNotNull(cause);
+        assertTrue(cause.pointsTo(parentBuild));
+
+        parentJob.getBuildersList().add(new UnstableBuilder());
+        assertBuildStatus(Result.UNSTABLE, parentJob.scheduleBuild2(0).get());
+        waitUntilNoActivity();
+        assertEquals("An unstable parent doesn't meet the criteria", b, childJob.getLastBuild());
+    }
+
+    public void testSnapshotIndexUpdatedOnCompletion() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        FreeStyleBuild b1 = buildAndAssertSuccess(parentJob);
+        SnapshotIndex index = SnapshotIndex.get();
+        assertEquals(-1, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(b1, index.getMostRecentBuild(parentJob, Result.SUCCESS, true));
+        assertEquals(1, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(b1, index.getMostRecentBuild(parentJob, Result.FAILURE, false));
+
+        buildAndAssertSuccess(parentJob);
+        assertEquals(2, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(2, index.getIndexed("parentJob", Result.FAILURE, false));
+        assertEquals("criteria not looked up yet stay unknown", -1, index.getIndexed("parentJob", Result.UNSTABLE, true));
+
+        parentJob.getBuildersList().add(new FailureBuilder());
+        assertBuildStatus(Result.FAILURE, parentJob.scheduleBuild2(0).get());
+        assertEquals(2, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(3, index.getIndexed("parentJob", Result.FAILURE, false));
+    }
+
+    public void testSnapshotIndexInvalidatedOnDeletion() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        FreeStyleBuild b1 = buildAndAssertSuccess(parentJob);
+        FreeStyleBuild b2 = buildAndAssertSuccess(parentJob);
+        SnapshotIndex index = SnapshotIndex.get();
+        assertEquals(b2, index.getMostRecentBuild(parentJob, Result.SUCCESS, true));
+
+        b2.delete();
+        assertEquals(-1, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(b1, index.getMostRecentBuild(parentJob, Result.SUCCESS, true));
+        assertEquals(1, index.getIndexed("parentJob", Result.SUCCESS, true));
+
+        parentJob.delete();
+        assertEquals(-1, index.getIndexed("parentJob", Result.SUCCESS, true));
+    }
+
+    public void testStaleSnapshotIndex() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        FreeStyleBuild b1 = buildAndAssertSuccess(parentJob);
+        FreeStyleBuild b2 = buildAndAssertSuccess(parentJob);
+        SnapshotIndex index = SnapshotIndex.get();
+        assertEquals(b2, index.getMostRecentBuild(parentJob, Result.SUCCESS, true));
+
+        // the snapshot went away without the index hearing about it
+        b2.removeActions(WorkspaceSnapshot.class);
+        assertEquals(2, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(b1, index.getMostRecentBuild(parentJob, Result.SUCCESS, true));
+        assertEquals(1, index.getIndexed("parentJob", Result.SUCCESS, true));
+        assertEquals(b2, index.getMostRecentBuild(parentJob, Result.SUCCESS, false));
+    }
+
+    public void testParentBuildRecorded() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        buildAndAssertSuccess(parentJob);
+        buildAndAssertSuccess(parentJob);
+        FreeStyleProject childJob = createCloneChildProject();
+        FreeStyleBuild b = buildAndAssertSuccess(childJob);
+
+        CloneWorkspaceParentAction a = b.getAction(CloneWorkspaceParentAction.class);
+        assertNotNull(a);
+        assertEquals("parentJob", a.getParentJobName());
+        assertEquals(2, a.getParentBuildNumber());
+        CloneWorkspaceSCM scm = (CloneWorkspaceSCM) childJob.getScm();
+        assertEquals(2, ((CloneWorkspaceSCM.CloneWorkspaceSCMRevisionState) scm.calcRevisionsFromBuild(b, null, TaskListener.NULL)).parentBuildNumber);
+
+        // builds made by older versions only have the parent build file
+        b.removeAction(a);
+        new FilePath(CloneWorkspaceSCM.getParentBuildFile(b)).write("1\n", "UTF-8");
+        FreeStyleBuild b2 = buildAndAssertSuccess(childJob);
+        b2.removeActions(CloneWorkspaceParentAction.class);
+        // polling reads it from the closest build that has it, and migrates just that build
+        assertEquals(1, ((CloneWorkspaceSCM.CloneWorkspaceSCMRevisionState) scm.calcRevisionsFromBuild(b2, null, TaskListener.NULL)).parentBuildNumber);
+        assertEquals(1, b.getAction(CloneWorkspaceParentAction.class).getParentBuildNumber());
+        assertNull("builds without the file aren't changed", b2.getAction(CloneWorkspaceParentAction.class));
+        assertEquals(1, ((CloneWorkspaceSCM.CloneWorkspaceSCMRevisionState) scm.calcRevisionsFromBuild(b, null, TaskListener.NULL)).parentBuildNumber);
+    }
+
+    public void testEligibleParents() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        createFreeStyleProject("unrelated");
+
+        CloneWorkspaceSCM.DescriptorImpl descriptor = CloneWorkspaceSCM.DescriptorImpl.get();
+        assertEquals(List.of("parentJob"), descriptor.getEligibleParents());
+
+        parentJob.renameTo("renamedParent");
+        assertEquals(List.of("renamedParent"), descriptor.getEligibleParents());
+
+        parentJob.getPublishersList().clear();
+        assertTrue(descriptor.getEligibleParents().isEmpty());
+    }
+
+    public void testProjectIndexFollowsChildren() throws Exception {
+        createCloneParentProject();
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Any");
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        ProjectIndex index = ProjectIndex.get();
+        assertEquals(childJob, index.getOwner(scm));
+        assertEquals(List.of(childJob), index.getChildren("parentJob"));
+
+        // reconfigured
+        CloneWorkspaceSCM other = new CloneWorkspaceSCM("otherParent", "Any");
+        childJob.setScm(other);
+        assertNull(index.getOwner(scm));
+        assertEquals(childJob, index.getOwner(other));
+        assertTrue(index.getChildren("parentJob").isEmpty());
+        assertEquals(List.of(childJob), index.getChildren("otherParent"));
+
+        // renamed
+        childJob.renameTo("renamedChild");
+        assertEquals(childJob, index.getOwner(other));
+        assertEquals(List.of(childJob), index.getChildren("otherParent"));
+        assertEquals("renamedChild", index.getChildren("otherParent").get(0).getFullName());
+
+        // deleted
+        childJob.delete();
+        assertNull(index.getOwner(other));
+        assertTrue(index.getChildren("otherParent").isEmpty());
+    }
+
+    public void testParentValidationNeedsConfigure() throws Exception {
+        createCloneParentProject();
+        FreeStyleProject childJob = createCloneChildProject();
+        jenkins.setSecurityRealm(createDummySecurityRealm());
+        jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+            .grant(Jenkins.READ, Item.READ).everywhere().to("reader")
+            .grant(Jenkins.READ, Item.READ, Item.CONFIGURE).everywhere().to("admin"));
+        CloneWorkspaceSCM.DescriptorImpl descriptor = CloneWorkspaceSCM.DescriptorImpl.get();
+
+        try (ACLContext ctx = ACL.as(User.getById("reader", true))) {
+            descriptor.doCheckParentJobName(childJob, "parentJob");
+            fail("reader can't configure the child");
+        } catch (AccessDeniedException e) {
+            // expected
+        }
+        try (ACLContext ctx = ACL.as(User.getById("reader", true))) {
+            descriptor.doEligibleParents(childJob, null, 0, 0);
+            fail("reader can't configure the child");
+        } catch (AccessDeniedException e) {
+            // expected
+        }
+        try (ACLContext ctx = ACL.as(User.getById("admin", true))) {
+            assertEquals(FormValidation.Kind.OK, descriptor.doCheckParentJobName(childJob, "parentJob").kind);
+        }
+    }
+
     public void testNoParentCloningFails() throws Exception {
         FreeStyleProject childJob = createCloneChildProject();
 
@@ -179,6 +903,27 @@ public class CloneWorkspaceSCMTest extends HudsonTestCase {
         assertTrue("ChangeLogSet should contain moduleB/src/main/java/test/AppB.java but does not", changedFiles.contains("moduleB/src/main/java/test/AppB.java"));
     }
 
+    public void testReferenceChangeLog() throws Exception {
+        FreeStyleProject parentJob = createCloneParentProject();
+        buildAndAssertSuccess(parentJob);
+
+        CloneWorkspaceSCM scm = new CloneWorkspaceSCM("parentJob", "Any");
+        scm.setReferenceChangeLog(true);
+        FreeStyleProject childJob = createCloneChildProject(scm);
+        buildAndAssertSuccess(childJob);
+
+        // the child skips the second parent build
+        buildAndAssertSuccess(parentJob);
+        buildAndAssertSuccess(parentJob);
+        FreeStyleBuild fb = buildAndAssertSuccess(childJob);
+
+        assertTrue(new FilePath(new File(fb.getRootDir(), "changelog.xml")).readToString().contains("from=\"1\" to=\"3\""));
+        MergedChangeLogSet changes = (MergedChangeLogSet) fb.getChangeSet();
+        assertEquals(2, changes.getChangeSets().size());
+        assertFalse("ChangeLogSet should not be empty.", changes.isEmptySet());
+        assertEquals("testuser", fb.getCulprits().iterator().next().getFullName());
+    }
+
     private FreeStyleProject createCloneChildProject() throws Exception {
         return createCloneChildProject(new CloneWorkspaceSCM("parentJob", "any"));
     }